@@ -4,10 +4,6 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
-
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
  * hardware provides a method (<tt>setStatus()</tt>) to enable or disable
@@ -52,7 +48,14 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+
+		String queue = Config.getString("Interrupt.queue", "wheel");
+		if (queue.equals("wheel"))
+			pending = new TimingWheel();
+		else if (queue.equals("tree"))
+			pending = new TreeInterruptQueue();
+		else
+			Lib.assertNotReached("unknown interrupt queue: " + queue);
 	}
 
 	/**
@@ -119,16 +122,40 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Advance the simulated time to just before the next pending interrupt is
+	 * due. This has the same effect as repeatedly enabling interrupts without
+	 * doing anything else, one kernel tick at a time, except that it stops
+	 * before the tick that invokes the interrupt handler. The kernel can call
+	 * this when no thread is ready to run, so that the idle thread does not
+	 * have to spin through those ticks itself. Interrupts must be disabled.
+	 */
+	public void skipIdleTime() {
+		Lib.assertTrue(disabled());
+
+		// ticks print themselves while debugging, so take them one at a time
+		if (pending.isEmpty() || Lib.test(dbgInt))
+			return;
+
+		Stats stats = privilege.stats;
+		long idleTicks = (pending.firstTime() - stats.totalTicks - 1)
+				/ Stats.KernelTick * Stats.KernelTick;
+
+		if (idleTicks > 0) {
+			stats.kernelTicks += idleTicks;
+			stats.totalTicks += idleTicks;
+		}
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		pending.add(time, type, handler);
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -151,6 +178,17 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private long nextDue() {
+		// the debug output and the re-enabling of interrupts happen every tick
+		if (!enabled || Lib.test(dbgInt))
+			return privilege.stats.totalTicks + 1;
+
+		if (pending.isEmpty())
+			return Long.MAX_VALUE;
+
+		return pending.firstTime();
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -162,24 +200,21 @@ public final class Interrupt {
 		if (pending.isEmpty())
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (pending.firstTime() > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
-
-			Lib.assertTrue(next.time <= time);
+		while (!pending.isEmpty() && pending.firstTime() <= time) {
+			String type = pending.firstType();
+			Runnable handler = pending.removeFirst();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,55 +225,16 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
-		}
+		pending.print();
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
-
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
-		}
-
-		long time;
-
-		String type;
-
-		Runnable handler;
-
-		private long id;
-	}
-
-	private long numPendingInterruptsCreated = 0;
-
 	private Privilege privilege;
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	private InterruptQueue pending;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +246,9 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long nextDue() {
+			return Interrupt.this.nextDue();
+		}
 	}
 }
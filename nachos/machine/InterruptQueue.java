@@ -0,0 +1,64 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * The set of interrupts that are waiting to occur. Interrupts leave the queue
+ * in order of the time they are due, and interrupts that are due at the same
+ * time leave in the order they were added.
+ *
+ * @see nachos.machine.Interrupt
+ */
+interface InterruptQueue {
+	/**
+	 * Add an interrupt to the queue.
+	 *
+	 * @param time the time at which the interrupt is due.
+	 * @param type a name for the type of interrupt.
+	 * @param handler the interrupt handler to call.
+	 */
+	public void add(long time, String type, Runnable handler);
+
+	/**
+	 * Tests whether the queue is empty.
+	 *
+	 * @return <tt>true</tt> if no interrupts are pending.
+	 */
+	public boolean isEmpty();
+
+	/**
+	 * Return the number of pending interrupts.
+	 *
+	 * @return the number of interrupts in the queue.
+	 */
+	public int size();
+
+	/**
+	 * Return the time at which the first interrupt is due. The queue must not
+	 * be empty.
+	 *
+	 * @return the time of the first interrupt.
+	 */
+	public long firstTime();
+
+	/**
+	 * Return the type of the first interrupt. The queue must not be empty.
+	 *
+	 * @return the type of the first interrupt.
+	 */
+	public String firstType();
+
+	/**
+	 * Remove the first interrupt from the queue. The queue must not be empty,
+	 * and the first interrupt must be due, i.e. no interrupt will ever again be
+	 * added with an earlier time.
+	 *
+	 * @return the handler of the interrupt that was removed.
+	 */
+	public Runnable removeFirst();
+
+	/**
+	 * Print the pending interrupts, in the order they will occur.
+	 */
+	public void print();
+}
@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -47,6 +49,9 @@ public final class Processor {
 
 		mainMemory = new byte[pageSize * numPhysPages];
 
+		decodeCache = new DecodedInstruction[numPhysPages][];
+		pageVersions = new int[numPhysPages];
+
 		if (usingTLB) {
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
@@ -93,16 +98,73 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		// whatever we knew about pending interrupts is stale by now
+		nextInterrupt = 0;
+		numKernelEntries++;
+
+		// translated blocks skip the per-instruction debug output
+		boolean translating = blockThreshold > 0 && !Lib.test(dbgProcessor)
+				&& !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble);
+
 		while (true) {
 			try {
-				inst.run();
+				inst.fetch();
+
+				if (translating) {
+					DecodedInstruction decoded = inst.decoded;
+
+					// a block whose page was rewritten is translated again
+					if (decoded.block != null && !decoded.block.isCurrent()) {
+						decoded.block = null;
+						decoded.hits = 0;
+					}
+
+					// a translated block ticks once for each instruction
+					if (decoded.block != null && decoded.block.run())
+						continue;
+
+					if (++decoded.hits == blockThreshold)
+						decoded.block = translateBlock(inst.paddr);
+				}
+
+				inst.decode();
+				inst.execute();
+				inst.writeBack();
 			}
 			catch (MipsException e) {
+				chargeDeferredTicks();
 				e.handle();
+				nextInterrupt = 0;
+				numKernelEntries++;
 			}
 
-			privilege.interrupt.tick(false);
+			tick();
+		}
+	}
+
+	/**
+	 * Advance the simulated time by one user tick. Ticks that cannot run an
+	 * interrupt handler are only counted, and are charged to <tt>Stats</tt>
+	 * in one step before the next real tick or the next exception, so the
+	 * kernel always sees the same time it would have seen without batching.
+	 */
+	private void tick() {
+		if (privilege.stats.totalTicks + deferredTicks + Stats.UserTick < nextInterrupt) {
+			deferredTicks += Stats.UserTick;
+			return;
 		}
+
+		chargeDeferredTicks();
+		privilege.interrupt.tick(false);
+
+		if (batchTicks)
+			nextInterrupt = privilege.interrupt.nextDue();
+	}
+
+	private void chargeDeferredTicks() {
+		privilege.stats.userTicks += deferredTicks;
+		privilege.stats.totalTicks += deferredTicks;
+		deferredTicks = 0;
 	}
 
 	/**
@@ -175,6 +237,8 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+
+		flushTranslationCache();
 	}
 
 	/**
@@ -216,6 +280,8 @@ public final class Processor {
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
 		translations[number] = new TranslationEntry(entry);
+
+		flushTranslationCache();
 	}
 
 	/**
@@ -292,13 +358,16 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
-		if (Lib.test(dbgProcessor))
+		boolean debug = Lib.test(dbgProcessor);
+
+		if (debug)
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
 
 		// check alignment
 		if ((vaddr & (size - 1)) != 0) {
-			Lib.debug(dbgProcessor, "\t\talignment error");
+			if (debug)
+				System.out.println("\t\talignment error");
 			throw new MipsException(exceptionAddressError, vaddr);
 		}
 
@@ -306,14 +375,37 @@ public final class Processor {
 		int vpn = pageFromAddress(vaddr);
 		int offset = offsetFromAddress(vaddr);
 
-		TranslationEntry entry = null;
+		// try the translation cache first
+		int slot = ((vpn & (translationCacheSize - 1)) << 1)
+				| (writing ? 1 : 0);
+		TranslationEntry entry = cachedEntries[slot];
+
+		if (entry != null && cachedVPNs[slot] == vpn
+				&& (usingTLB || isCurrentMapping(vpn, slot, writing))) {
+			privilege.stats.numTranslationCacheHits++;
+
+			// set used and dirty bits as appropriate
+			entry.used = true;
+			if (writing)
+				entry.dirty = true;
+
+			int paddr = cachedBases[slot] + offset;
+
+			if (debug)
+				System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+			return paddr;
+		}
+
+		privilege.stats.numTranslationCacheMisses++;
+		entry = null;
 
 		// if not using a TLB, then the vpn is an index into the table
 		if (!usingTLB) {
 			if (translations == null || vpn >= translations.length
 					|| translations[vpn] == null || !translations[vpn].valid) {
 				privilege.stats.numPageFaults++;
-				Lib.debug(dbgProcessor, "\t\tpage fault");
+				if (debug)
+					System.out.println("\t\tpage fault");
 				throw new MipsException(exceptionPageFault, vaddr);
 			}
 
@@ -329,21 +421,24 @@ public final class Processor {
 			}
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
-				Lib.debug(dbgProcessor, "\t\tTLB miss");
+				if (debug)
+					System.out.println("\t\tTLB miss");
 				throw new MipsException(exceptionTLBMiss, vaddr);
 			}
 		}
 
 		// check if trying to write a read-only page
 		if (entry.readOnly && writing) {
-			Lib.debug(dbgProcessor, "\t\tread-only exception");
+			if (debug)
+				System.out.println("\t\tread-only exception");
 			throw new MipsException(exceptionReadOnly, vaddr);
 		}
 
 		// check if physical page number is out of range
 		int ppn = entry.ppn;
 		if (ppn < 0 || ppn >= numPhysPages) {
-			Lib.debug(dbgProcessor, "\t\tbad ppn");
+			if (debug)
+				System.out.println("\t\tbad ppn");
 			throw new MipsException(exceptionBusError, vaddr);
 		}
 
@@ -352,13 +447,394 @@ public final class Processor {
 		if (writing)
 			entry.dirty = true;
 
+		cachedEntries[slot] = entry;
+		cachedVPNs[slot] = vpn;
+		cachedBases[slot] = ppn * pageSize;
+
 		int paddr = (ppn * pageSize) + offset;
 
-		if (Lib.test(dbgProcessor))
+		if (debug)
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
 	}
 
+	/**
+	 * Check that a cached page table translation still holds. TLB entries
+	 * are private copies that only change through <tt>writeTLBEntry()</tt>,
+	 * which flushes the cache, but page table entries belong to the kernel,
+	 * which may invalidate, remap, or write-protect them, or replace them in
+	 * the page table, at any time.
+	 */
+	private boolean isCurrentMapping(int vpn, int slot, boolean writing) {
+		TranslationEntry entry = cachedEntries[slot];
+
+		return translations[vpn] == entry && entry.valid
+				&& entry.ppn * pageSize == cachedBases[slot]
+				&& !(writing && entry.readOnly);
+	}
+
+	/**
+	 * Forget every cached translation. Called whenever the page table or the
+	 * TLB is replaced.
+	 */
+	private void flushTranslationCache() {
+		Arrays.fill(cachedEntries, null);
+	}
+
+	/**
+	 * Return the decoded form of the instruction word <i>value</i>, fetched
+	 * from physical address <i>paddr</i>. Decoded instructions are cached per
+	 * physical page, and each cached entry is tagged with the raw instruction
+	 * word it was decoded from. Since the kernel writes physical memory
+	 * directly (when loading sections, swapping pages in, or copying syscall
+	 * buffers), an entry is only reused if the word in memory still matches
+	 * its tag; otherwise the word is decoded again. Entries are keyed by
+	 * physical address, so remapping a virtual page never needs a flush.
+	 * 
+	 * @param paddr the physical address the instruction was fetched from.
+	 * @param value the instruction word at <i>paddr</i>.
+	 * @return the decoded instruction.
+	 */
+	private DecodedInstruction lookupDecoded(int paddr, int value) {
+		DecodedInstruction[] page = decodeCache[paddr / pageSize];
+		if (page == null) {
+			page = new DecodedInstruction[pageSize / 4];
+			decodeCache[paddr / pageSize] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+		DecodedInstruction decoded = page[index];
+		if (decoded == null || decoded.value != value) {
+			decoded = new DecodedInstruction(value);
+			page[index] = decoded;
+		}
+
+		return decoded;
+	}
+
+	/**
+	 * Translate the basic block starting at physical address <i>paddr</i>. A
+	 * block is a run of straight-line instructions within one physical page,
+	 * ending with a branch or jump and its delay slot, or just before an
+	 * instruction that always traps (<tt>syscall</tt>, invalid, or
+	 * unimplemented instructions), which is left to the interpreter.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @return the translated block, or <tt>null</tt> if no instruction at
+	 * <i>paddr</i> can be translated.
+	 */
+	private BasicBlock translateBlock(int paddr) {
+		int pageEnd = (paddr / pageSize + 1) * pageSize;
+
+		DecodedInstruction[] decoded = new DecodedInstruction[maxBlockLength];
+		int length = 0;
+
+		for (int p = paddr; p < pageEnd && length < maxBlockLength; p += 4) {
+			DecodedInstruction inst = lookupDecoded(p,
+					Lib.bytesToInt(mainMemory, p, 4));
+
+			if (alwaysTraps(inst))
+				break;
+
+			if (Lib.test(Mips.BRANCH, inst.flags)) {
+				// the delay slot must fit in the block too
+				if (p + 4 >= pageEnd || length + 2 > maxBlockLength)
+					break;
+
+				DecodedInstruction slot = lookupDecoded(p + 4,
+						Lib.bytesToInt(mainMemory, p + 4, 4));
+				if (alwaysTraps(slot) || Lib.test(Mips.BRANCH, slot.flags))
+					break;
+
+				decoded[length++] = inst;
+				decoded[length++] = slot;
+				break;
+			}
+
+			decoded[length++] = inst;
+		}
+
+		if (length == 0)
+			return null;
+
+		BlockOperation[] operations = new BlockOperation[length];
+		for (int i = 0; i < length; i++)
+			operations[i] = translate(decoded[i]);
+
+		return new BasicBlock(paddr, Arrays.copyOf(decoded, length),
+				operations);
+	}
+
+	/**
+	 * Compare the speed of interpreting and of translating instructions, by
+	 * running a short loop of ALU, load and store instructions, first with
+	 * translation disabled and then with the configured
+	 * <tt>blockThreshold</tt>. The loop runs from the first two pages of
+	 * physical memory, whose contents are restored afterwards, as are the
+	 * registers, the address translations, and the exception handler. Must be
+	 * called with interrupts enabled and no user program loaded.
+	 */
+	public void benchmark() {
+		final int iterations = 1000000;
+		final int codePage = 0, dataPage = 1;
+
+		int[] program = {
+			encodeI(0x0f, 0, 9, iterations >>> 16),		// lui   $9, hi(n)
+			encodeI(0x0d, 9, 9, iterations & 0xFFFF),	// ori   $9, $9, lo(n)
+			encodeI(0x09, 0, 8, 0),						// addiu $8, $0, 0
+			encodeI(0x09, 0, 13, pageSize),				// addiu $13, $0, data
+			encodeI(0x23, 13, 10, 0),					// loop: lw $10, 0($13)
+			encodeI(0x09, 8, 8, 1),						// addiu $8, $8, 1
+			encodeR(10, 8, 10, 0, 0x21),				// addu  $10, $10, $8
+			encodeR(10, 8, 11, 0, 0x26),				// xor   $11, $10, $8
+			encodeR(0, 11, 12, 3, 0x00),				// sll   $12, $11, 3
+			encodeI(0x05, 8, 9, -6),					// bne   $8, $9, loop
+			encodeI(0x2b, 13, 12, 0),					// sw    $12, 0($13)
+			0x0000000c									// syscall
+		};
+		long instructions = 5 + 7L * iterations;
+
+		byte[] savedMemory = Arrays.copyOf(mainMemory, 2 * pageSize);
+		int[] savedRegisters = Arrays.copyOf(registers, numUserRegisters);
+		TranslationEntry[] savedTranslations = translations;
+		Runnable savedHandler = exceptionHandler;
+		int savedThreshold = blockThreshold;
+
+		TranslationEntry code = new TranslationEntry(0, codePage, true, true,
+				false, false);
+		TranslationEntry data = new TranslationEntry(1, dataPage, true,
+				false, false, false);
+		if (usingTLB) {
+			savedTranslations = new TranslationEntry[tlbSize];
+			for (int i = 0; i < tlbSize; i++)
+				savedTranslations[i] = readTLBEntry(i);
+			for (int i = 0; i < tlbSize; i++)
+				writeTLBEntry(i, new TranslationEntry());
+			writeTLBEntry(0, code);
+			writeTLBEntry(1, data);
+		}
+		else {
+			setPageTable(new TranslationEntry[] { code, data });
+		}
+
+		for (int i = 0; i < program.length; i++)
+			Lib.bytesFromInt(mainMemory, codePage * pageSize + i * 4,
+					program[i]);
+
+		// the loop ends with a syscall, which leaves run()
+		setExceptionHandler(new Runnable() {
+			public void run() {
+				throw new BenchmarkDone();
+			}
+		});
+
+		long[] nanos = new long[2];
+		for (int mode = 0; mode < 2; mode++) {
+			blockThreshold = mode == 0 ? 0 : savedThreshold;
+
+			// the first run warms up the host's compiler
+			for (int run = 0; run < 2; run++) {
+				Arrays.fill(mainMemory, dataPage * pageSize,
+						(dataPage + 1) * pageSize, (byte) 0);
+				Arrays.fill(registers, 0);
+				decodeCache[codePage] = null;
+
+				long start = System.nanoTime();
+				try {
+					run();
+				}
+				catch (BenchmarkDone e) {
+				}
+				nanos[mode] = System.nanoTime() - start;
+			}
+		}
+
+		blockThreshold = savedThreshold;
+		setExceptionHandler(savedHandler);
+		System.arraycopy(savedMemory, 0, mainMemory, 0, savedMemory.length);
+		pageVersions[codePage]++;
+		pageVersions[dataPage]++;
+		decodeCache[codePage] = null;
+		System.arraycopy(savedRegisters, 0, registers, 0, numUserRegisters);
+		if (usingTLB) {
+			for (int i = 0; i < tlbSize; i++)
+				writeTLBEntry(i, savedTranslations[i]);
+		}
+		else {
+			setPageTable(savedTranslations);
+		}
+
+		System.out.println("Processor, " + instructions
+				+ " instructions: interpreted "
+				+ String.format("%.1f", (double) nanos[0] / instructions)
+				+ " ns/instruction, translated "
+				+ String.format("%.1f", (double) nanos[1] / instructions)
+				+ " ns/instruction");
+	}
+
+	private static int encodeI(int op, int rs, int rt, int immediate) {
+		return (op << 26) | (rs << 21) | (rt << 16) | (immediate & 0xFFFF);
+	}
+
+	private static int encodeR(int rs, int rt, int rd, int shift, int funct) {
+		return (rs << 21) | (rt << 16) | (rd << 11) | (shift << 6) | funct;
+	}
+
+	/** Thrown by the benchmark's exception handler to leave <tt>run()</tt>. */
+	private static class BenchmarkDone extends RuntimeException {
+	}
+
+	private static boolean alwaysTraps(DecodedInstruction inst) {
+		return inst.operation == Mips.SYSCALL
+				|| inst.operation == Mips.INVALID
+				|| inst.operation == Mips.UNIMPL;
+	}
+
+	/**
+	 * Translate a single instruction into an operation with its operands
+	 * bound. The common ALU, load, and store instructions get specialized
+	 * operations; everything else goes through the interpreter's
+	 * <tt>execute()</tt> and <tt>writeBack()</tt>. Every operation has the
+	 * same effect on the registers, the delayed load, and memory as
+	 * interpreting the instruction.
+	 * 
+	 * @param inst the decoded instruction.
+	 * @return an operation that executes <i>inst</i>.
+	 */
+	private BlockOperation translate(final DecodedInstruction inst) {
+		final int rs = inst.rs, rt = inst.rt, sh = inst.sh;
+		final int imm = inst.imm, dst = inst.dstReg;
+		final int flags = inst.flags;
+		final boolean src2imm = Lib.test(Mips.SRC2IMM, flags);
+		final boolean unsigned = Lib.test(Mips.UNSIGNED, flags);
+
+		if (Lib.test(Mips.OVERFLOW, flags))
+			return () -> interpreter.run(inst);
+
+		switch (inst.operation) {
+		case Mips.ADD:
+			if (src2imm)
+				return () -> writeBack(dst, registers[rs] + imm);
+			return () -> writeBack(dst, registers[rs] + registers[rt]);
+		case Mips.SUB:
+			return () -> writeBack(dst, registers[rs] - registers[rt]);
+		case Mips.AND:
+			if (src2imm)
+				return () -> writeBack(dst, registers[rs] & imm);
+			return () -> writeBack(dst, registers[rs] & registers[rt]);
+		case Mips.OR:
+			if (src2imm)
+				return () -> writeBack(dst, registers[rs] | imm);
+			return () -> writeBack(dst, registers[rs] | registers[rt]);
+		case Mips.XOR:
+			if (src2imm)
+				return () -> writeBack(dst, registers[rs] ^ imm);
+			return () -> writeBack(dst, registers[rs] ^ registers[rt]);
+		case Mips.NOR:
+			return () -> writeBack(dst, ~(registers[rs] | registers[rt]));
+		case Mips.LUI:
+			return () -> writeBack(dst, imm << 16);
+
+		case Mips.SLT:
+			if (src2imm) {
+				if (unsigned)
+					return () -> writeBack(dst,
+							(registers[rs] & 0xFFFFFFFFL) < imm ? 1 : 0);
+				return () -> writeBack(dst, registers[rs] < imm ? 1 : 0);
+			}
+			if (unsigned)
+				return () -> writeBack(dst, (registers[rs] & 0xFFFFFFFFL)
+						< (registers[rt] & 0xFFFFFFFFL) ? 1 : 0);
+			return () -> writeBack(dst, registers[rs] < registers[rt] ? 1 : 0);
+
+		// shifts operate on the sign-extended register, as in execute()
+		case Mips.SLL:
+			if (Lib.test(Mips.SRC1SH, flags))
+				return () -> writeBack(dst, registers[rt] << sh);
+			return () -> writeBack(dst, registers[rt] << (registers[rs] & 0x1F));
+		case Mips.SRA:
+			if (Lib.test(Mips.SRC1SH, flags))
+				return () -> writeBack(dst, registers[rt] >> sh);
+			return () -> writeBack(dst, registers[rt] >> (registers[rs] & 0x1F));
+		case Mips.SRL:
+			if (Lib.test(Mips.SRC1SH, flags))
+				return () -> writeBack(dst, (int) ((long) registers[rt] >>> sh));
+			return () -> writeBack(dst,
+					(int) ((long) registers[rt] >>> (registers[rs] & 0x1F)));
+
+		case Mips.LOAD:
+			final int size = inst.size;
+			final int bits = size * 8;
+			if (unsigned)
+				return () -> loadBack(dst, readMem(registers[rs] + imm, size));
+			return () -> loadBack(dst,
+					Lib.extend(readMem(registers[rs] + imm, size), 0, bits));
+		case Mips.STORE:
+			return () -> {
+				writeMem(registers[rs] + imm, inst.size, registers[rt]);
+				finishLoad();
+				advancePC(registers[regNextPC] + 4);
+			};
+		}
+
+		// conditional branches that do not link
+		if (Lib.test(Mips.LINK, flags))
+			return () -> interpreter.run(inst);
+
+		final int offset = inst.branchOffset;
+		switch (inst.operation) {
+		case Mips.BEQ:
+			return () -> branch(registers[rs] == registers[rt], offset);
+		case Mips.BNE:
+			return () -> branch(registers[rs] != registers[rt], offset);
+		case Mips.BGEZ:
+			return () -> branch(registers[rs] >= 0, offset);
+		case Mips.BGTZ:
+			return () -> branch(registers[rs] > 0, offset);
+		case Mips.BLEZ:
+			return () -> branch(registers[rs] <= 0, offset);
+		case Mips.BLTZ:
+			return () -> branch(registers[rs] < 0, offset);
+
+		default:
+			return () -> interpreter.run(inst);
+		}
+	}
+
+	/**
+	 * Complete a translated instruction that writes <i>value</i> to register
+	 * <i>dstReg</i>, the same way <tt>Instruction.writeBack()</tt> does.
+	 */
+	private void writeBack(int dstReg, int value) {
+		finishLoad();
+
+		if (dstReg != 0)
+			registers[dstReg] = value;
+
+		advancePC(registers[regNextPC] + 4);
+	}
+
+	/**
+	 * Complete a translated conditional branch, the same way
+	 * <tt>Instruction.writeBack()</tt> does.
+	 */
+	private void branch(boolean taken, int offset) {
+		finishLoad();
+
+		int nextPC = registers[regNextPC];
+		advancePC(taken ? nextPC + offset : nextPC + 4);
+	}
+
+	/**
+	 * Complete a translated load of <i>value</i> into register <i>dstReg</i>,
+	 * the same way <tt>Instruction.writeBack()</tt> does.
+	 */
+	private void loadBack(int dstReg, int value) {
+		delayedLoad(dstReg, value, 0xFFFFFFFF);
+
+		advancePC(registers[regNextPC] + 4);
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -402,7 +878,12 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+		lastWrittenPage = paddr / pageSize;
+		pageVersions[lastWrittenPage]++;
 	}
 
 	/**
@@ -570,6 +1051,27 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/** Number of sets in the translation cache. Must be a power of two. */
+	private static final int translationCacheSize = 64;
+
+	/**
+	 * A direct-mapped cache of recent translations, indexed by the low bits
+	 * of the vpn and by whether the access is a write. Each slot holds the
+	 * entry that produced the translation, its vpn, and the physical address
+	 * of the page.
+	 */
+	private TranslationEntry[] cachedEntries = new TranslationEntry[translationCacheSize * 2];
+
+	private int[] cachedVPNs = new int[translationCacheSize * 2];
+
+	private int[] cachedBases = new int[translationCacheSize * 2];
+
+	/**
+	 * Decoded instructions, indexed by physical page and then by word within
+	 * the page. Pages are allocated the first time code is fetched from them.
+	 */
+	private DecodedInstruction[][] decodeCache;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -579,12 +1081,179 @@ public final class Processor {
 
 	private static final char dbgFullDisassemble = 'M';
 
+	/**
+	 * The number of executions of an instruction after which the basic block
+	 * starting at it is translated. Zero disables translation.
+	 */
+	private int blockThreshold = Config.getInteger("Processor.blockThreshold",
+			50);
+
+	/** Whether user ticks that cannot run a handler are batched. */
+	private boolean batchTicks = Config.getBoolean("Processor.batchTicks",
+			true);
+
+	/**
+	 * The time of the next pending interrupt, as of the last real tick. Zero
+	 * forces the next tick to be taken individually.
+	 */
+	private long nextInterrupt = 0;
+
+	/** User ticks that have passed but not yet been charged to Stats. */
+	private long deferredTicks = 0;
+
+	/** The maximum number of instructions in a translated block. */
+	private static final int maxBlockLength = 64;
+
+	/** Executes the instructions that blocks do not specialize. */
+	private Instruction interpreter = new Instruction();
+
+	/**
+	 * The number of times the pipeline was flushed for an interrupt handler.
+	 * A translated block stops as soon as this changes, since the handler may
+	 * have switched threads or changed the page it is running from.
+	 */
+	private long numPipeFlushes = 0;
+
+	/** The physical page written by the most recent store. */
+	private int lastWrittenPage = -1;
+
+	/**
+	 * The number of stores to each physical page. A translated block is
+	 * dropped once a store hits its page.
+	 */
+	private int[] pageVersions;
+
+	/**
+	 * The number of times the kernel may have run since the processor
+	 * started: at each exception, at each interrupt handler, and whenever a
+	 * thread starts running user code. The kernel writes physical memory
+	 * directly, so a translated block re-checks its instructions against
+	 * memory the first time it runs after this changes, and no more often.
+	 */
+	private long numKernelEntries = 0;
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
+			numPipeFlushes++;
+			numKernelEntries++;
 			finishLoad();
 		}
 	}
 
+	private interface BlockOperation {
+		void run() throws MipsException;
+	}
+
+	/**
+	 * A translated basic block. Running a block has the same effect as
+	 * interpreting its instructions one at a time, including the simulated
+	 * time that passes after each one.
+	 */
+	private class BasicBlock {
+		BasicBlock(int paddr, DecodedInstruction[] decoded,
+				BlockOperation[] operations) {
+			this.paddr = paddr;
+			this.decoded = decoded;
+			this.operations = operations;
+
+			version = pageVersions[paddr / pageSize];
+			checkedEntries = numKernelEntries;
+		}
+
+		/**
+		 * Test whether the instructions in memory are still the ones this
+		 * block was translated from. A block is stale once a store hits its
+		 * page. Since the kernel may also have overwritten the page, the
+		 * block compares its instructions with memory the first time it runs
+		 * after the kernel did.
+		 * 
+		 * @return <tt>true</tt> if the block can still be run.
+		 */
+		boolean isCurrent() {
+			if (pageVersions[paddr / pageSize] != version)
+				return false;
+
+			if (checkedEntries != numKernelEntries) {
+				for (int i = 0; i < decoded.length; i++) {
+					if (Lib.bytesToInt(mainMemory, paddr + i * 4, 4) != decoded[i].value)
+						return false;
+				}
+
+				checkedEntries = numKernelEntries;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Run this block from its first instruction. The first instruction
+		 * must already have been fetched from the current PC, and the block
+		 * must still be current (see <tt>isCurrent()</tt>). Ticks the
+		 * interrupt controller after each instruction, or charges all of the
+		 * block's ticks at once if no interrupt can come due before it ends.
+		 * Returns early if an interrupt handler ran or the block's own page
+		 * was written, so that the interpreter refetches from the current PC.
+		 * 
+		 * @return <tt>false</tt> if the block could not be run, in which case
+		 * nothing was executed.
+		 * @exception MipsException if an instruction caused an exception. The
+		 * instructions before it have been executed and ticked.
+		 */
+		boolean run() throws MipsException {
+			// blocks are straight-line code, so we can't start in a delay slot
+			if (registers[regNextPC] != registers[regPC] + 4)
+				return false;
+
+			long flushes = numPipeFlushes;
+			int page = paddr / pageSize;
+			lastWrittenPage = -1;
+
+			// if no interrupt can come due before the block ends, charge its
+			// ticks all at once, as tick() would have deferred each of them
+			if (privilege.stats.totalTicks + deferredTicks
+					+ operations.length * Stats.UserTick < nextInterrupt) {
+				int i = 0;
+				try {
+					while (i < operations.length) {
+						operations[i].run();
+						i++;
+
+						if (lastWrittenPage == page)
+							break;
+					}
+				}
+				finally {
+					deferredTicks += i * Stats.UserTick;
+				}
+
+				return true;
+			}
+
+			for (int i = 0; i < operations.length; i++) {
+				operations[i].run();
+
+				tick();
+
+				if (numPipeFlushes != flushes || lastWrittenPage == page)
+					break;
+			}
+
+			return true;
+		}
+
+		private int paddr;
+
+		private DecodedInstruction[] decoded;
+
+		private BlockOperation[] operations;
+
+		/** The number of stores to the block's page when it was translated. */
+		private int version;
+
+		/** The value of <tt>numKernelEntries</tt> at the last check. */
+		private long checkedEntries;
+	}
+
 	private class MipsException extends Exception {
 		public MipsException(int cause) {
 			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
@@ -625,96 +1294,77 @@ public final class Processor {
 	}
 
 	private class Instruction {
-		public void run() throws MipsException {
+		private boolean test(int flag) {
+			return Lib.test(flag, flags);
+		}
+
+		public void run(DecodedInstruction decoded) throws MipsException {
+			this.decoded = decoded;
+
 			// hopefully this looks familiar to 152 students?
-			fetch();
 			decode();
 			execute();
 			writeBack();
 		}
 
-		private boolean test(int flag) {
-			return Lib.test(flag, flags);
-		}
-
 		private void fetch() throws MipsException {
 			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
 					|| Lib.test(dbgFullDisassemble))
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			int vaddr = registers[regPC];
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+						+ ", size=4");
+
+			paddr = translate(vaddr, 4, false);
+			value = Lib.bytesToInt(mainMemory, paddr, 4);
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
+
+			decoded = lookupDecoded(paddr, value);
 		}
 
 		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			DecodedInstruction info = decoded;
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			op = info.op;
+			rs = info.rs;
+			rt = info.rt;
+			rd = info.rd;
+			sh = info.sh;
+			func = info.func;
+			target = info.target;
+			imm = info.imm;
 
 			operation = info.operation;
 			name = info.name;
 			format = info.format;
 			flags = info.flags;
 
+			size = info.size;
+			dstReg = info.dstReg;
+
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + decoded.branchOffset;
 			else if (format == Mips.JFMT)
 				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -1070,6 +1720,10 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
+		DecodedInstruction decoded;
+
+		int paddr;
+
 		int value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
@@ -1087,6 +1741,88 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * The parts of an instruction that depend only on the instruction word:
+	 * its bit fields, its <tt>Mips</tt> table entry, and the operand
+	 * selection derived from its flags.
+	 */
+	private static class DecodedInstruction {
+		DecodedInstruction(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+
+			int immediate = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// branches always use the sign-extended immediate
+			branchOffset = immediate << 2;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags))
+				imm = immediate & 0xFFFF;
+			else
+				imm = immediate;
+		}
+
+		final int value, op, rs, rt, rd, sh, func, target, imm;
+
+		final int operation, format, flags;
+
+		final String name;
+
+		final int size, dstReg, branchOffset;
+
+		/** The number of times this instruction was interpreted. */
+		int hits = 0;
+
+		/** The translated block starting at this instruction, if any. */
+		BasicBlock block = null;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
@@ -26,6 +26,9 @@ public final class Stats {
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
 				+ ", TLB misses " + numTLBMisses);
+		System.out.println("Translation cache: hits "
+				+ numTranslationCacheHits + ", misses "
+				+ numTranslationCacheMisses);
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites);
@@ -66,6 +69,18 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/**
+	 * The total number of address translations answered by the processor's
+	 * translation cache.
+	 */
+	public long numTranslationCacheHits = 0;
+
+	/**
+	 * The total number of address translations that missed the processor's
+	 * translation cache.
+	 */
+	public long numTranslationCacheMisses = 0;
+
         /** The total number of pages read from COFF files. */
         public int numCOFFReads = 0;
 
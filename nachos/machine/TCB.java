@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -39,6 +41,40 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		if (Config.getBoolean("Machine.virtualThreads", false))
+			useVirtualThreads();
+	}
+
+	/**
+	 * Back every TCB but the first with a JVM virtual thread instead of a
+	 * platform thread. Virtual threads are cheap to create and park, so far
+	 * more TCBs may exist at once. They only exist in JDK 21 and later, and
+	 * this class must still compile on older JDKs, so the builder is looked up
+	 * reflectively, before the security manager is installed.
+	 */
+	private static void useVirtualThreads() {
+		try {
+			virtualThreadBuilder = Thread.class.getMethod("ofVirtual").invoke(
+					null);
+			newVirtualThread = Class.forName("java.lang.Thread$Builder")
+					.getMethod("unstarted", Runnable.class);
+		}
+		catch (ReflectiveOperationException e) {
+			Lib.assertNotReached("Machine.virtualThreads requires JDK 21 or later");
+		}
+	}
+
+	private static Thread newJavaThread(Runnable target) {
+		if (virtualThreadBuilder == null)
+			return new Thread(target);
+
+		try {
+			return (Thread) newVirtualThread.invoke(virtualThreadBuilder, target);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new Error(e);
+		}
 	}
 
 	/**
@@ -68,7 +104,9 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		int limit = (virtualThreadBuilder == null) ? maxThreads
+				: maxVirtualThreads;
+		Lib.assertTrue(runningThreads.size() < limit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,7 +140,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newJavaThread(tcbTarget);
 				}
 			});
 
@@ -291,32 +329,33 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
+	 * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
+	 * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
+	 * TCB needs to go to wait for its turn to run. This includes the ping-pong
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * <tt>park()</tt> may return spuriously, or because of a permit left over
+	 * from an earlier <tt>interrupt()</tt>, so the flag is checked again every
+	 * time.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
-		}
+	private void waitForInterrupt() {
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
+	 * and unparking the Java thread bound to it. Used in the ping-pong process
+	 * of starting and destroying TCBs, as well as in context switching to this
+	 * TCB. Since <tt>running</tt> is volatile, everything the waking TCB did
+	 * before setting it is visible to this TCB once it sees the flag.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -346,6 +385,12 @@ public final class TCB {
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The maximum number of started, non-destroyed TCB's that can be in
+	 * existence when they are backed by virtual threads.
+	 */
+	public static final int maxVirtualThreads = 100000;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -377,6 +422,15 @@ public final class TCB {
 
 	private static Privilege privilege;
 
+	/**
+	 * The <tt>Thread.Builder</tt> used to create virtual threads, or
+	 * <tt>null</tt> to create platform threads.
+	 */
+	private static Object virtualThreadBuilder = null;
+
+	/** <tt>Thread.Builder.unstarted(Runnable)</tt>. */
+	private static Method newVirtualThread = null;
+
 	private static KThread toBeDestroyed = null;
 
 	/**
@@ -403,7 +457,7 @@ public final class TCB {
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -51,6 +51,49 @@ public final class Timer {
 		this.handler = handler;
 	}
 
+	/**
+	 * Set the callback to use as the alarm interrupt handler. The alarm
+	 * interrupt handler will be called once each time the alarm set by
+	 * <tt>setAlarm()</tt> goes off.
+	 * 
+	 * @param handler the alarm interrupt handler.
+	 */
+	public void setAlarmHandler(Runnable handler) {
+		alarmHandler = handler;
+	}
+
+	/**
+	 * Set a one-shot alarm to go off at the specified time, independently of
+	 * the periodic timer interrupts. This replaces any alarm that has not gone
+	 * off yet. If the time has already passed, the alarm goes off at the next
+	 * clock tick.
+	 * 
+	 * @param time the time at which the alarm should go off.
+	 */
+	public void setAlarm(long time) {
+		if (alarmSet && time == alarmTime)
+			return;
+
+		alarmSet = true;
+		alarmTime = time;
+
+		// an alarm that has been replaced still fires, but is ignored
+		final long alarm = ++numAlarms;
+		privilege.interrupt.schedule(Math.max(time - getTime(), 1), "alarm",
+				new Runnable() {
+					public void run() {
+						alarmInterrupt(alarm);
+					}
+				});
+	}
+
+	/**
+	 * Cancel the alarm, if it has not gone off yet.
+	 */
+	public void cancelAlarm() {
+		alarmSet = false;
+	}
+
 	/**
 	 * Get the current time.
 	 * 
@@ -70,6 +113,16 @@ public final class Timer {
 			handler.run();
 	}
 
+	private void alarmInterrupt(long alarm) {
+		if (!alarmSet || alarm != numAlarms)
+			return;
+
+		alarmSet = false;
+
+		if (alarmHandler != null)
+			alarmHandler.run();
+	}
+
 	private void scheduleInterrupt() {
 		int delay = Stats.TimerTicks;
 		delay += Lib.random(delay / 10) - (delay / 20);
@@ -90,4 +143,12 @@ public final class Timer {
 	private Privilege privilege;
 
 	private Runnable handler = null;
+
+	private Runnable alarmHandler = null;
+
+	private boolean alarmSet = false;
+
+	private long alarmTime;
+
+	private long numAlarms = 0;
 }
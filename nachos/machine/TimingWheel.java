@@ -0,0 +1,294 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * An interrupt queue kept in a hierarchical timing wheel. Adding an interrupt
+ * and removing the first interrupt take constant time, no matter how many
+ * interrupts are pending, and the entries that hold pending interrupts are
+ * reused instead of being allocated for every interrupt.
+ *
+ * <p>
+ * The wheel has a level for every six bits of the time. An interrupt is kept
+ * in the level of the highest six-bit digit in which its time differs from the
+ * time of the last interrupt removed (<i>now</i>), in the slot given by that
+ * digit of its time. So every slot of level zero holds interrupts due at a
+ * single time, and every interrupt in a level is due before every interrupt in
+ * the levels above it. When the first interrupt is in a higher level, its slot
+ * is redistributed into the lower levels as it is removed. Entries are always
+ * appended to their slot, and a slot is redistributed in order, so interrupts
+ * due at the same time stay in the order they were added.
+ */
+public final class TimingWheel implements InterruptQueue {
+	/**
+	 * Allocate a new, empty timing wheel.
+	 */
+	public TimingWheel() {
+		heads = new Entry[numLevels][slotsPerLevel];
+		tails = new Entry[numLevels][slotsPerLevel];
+		occupied = new long[numLevels];
+	}
+
+	public void add(long time, String type, Runnable handler) {
+		Lib.assertTrue(time >= now);
+
+		Entry entry = free;
+		if (entry != null)
+			free = entry.next;
+		else
+			entry = new Entry();
+
+		entry.time = time;
+		entry.type = type;
+		entry.handler = handler;
+
+		insert(entry);
+
+		if (size == 0 || (first != null && time < first.time))
+			first = entry;
+
+		size++;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long firstTime() {
+		return first().time;
+	}
+
+	public String firstType() {
+		return first().type;
+	}
+
+	public Runnable removeFirst() {
+		Entry entry = first();
+
+		// the first interrupt is due, so nothing earlier can be added anymore
+		now = entry.time;
+
+		int level = lowestLevel();
+		if (level > 0) {
+			int slot = Long.numberOfTrailingZeros(occupied[level]);
+			Entry list = heads[level][slot];
+
+			heads[level][slot] = tails[level][slot] = null;
+			occupied[level] &= ~(1L << slot);
+
+			while (list != null) {
+				Entry next = list.next;
+				insert(list);
+				list = next;
+			}
+		}
+
+		int slot = (int) now & slotMask;
+		Lib.assertTrue(heads[0][slot] == entry);
+
+		heads[0][slot] = entry.next;
+		if (entry.next == null) {
+			tails[0][slot] = null;
+			occupied[0] &= ~(1L << slot);
+		}
+
+		size--;
+		first = null;
+
+		Runnable handler = entry.handler;
+
+		entry.type = null;
+		entry.handler = null;
+		entry.next = free;
+		free = entry;
+
+		return handler;
+	}
+
+	public void print() {
+		for (int level = 0; level < numLevels; level++) {
+			for (int slot = 0; slot < slotsPerLevel; slot++) {
+				ArrayList<Entry> entries = new ArrayList<Entry>();
+				for (Entry e = heads[level][slot]; e != null; e = e.next)
+					entries.add(e);
+
+				// a stable sort keeps interrupts due at the same time in order
+				entries.sort((a, b) -> Long.compare(a.time, b.time));
+
+				for (Entry e : entries)
+					System.out.println("  " + e.type + ", scheduled at " + e.time);
+			}
+		}
+	}
+
+	private void insert(Entry entry) {
+		long diff = entry.time ^ now;
+		int level = (diff == 0) ? 0
+				: (63 - Long.numberOfLeadingZeros(diff)) / slotBits;
+		int slot = (int) (entry.time >>> (level * slotBits)) & slotMask;
+
+		entry.next = null;
+		if (heads[level][slot] == null)
+			heads[level][slot] = entry;
+		else
+			tails[level][slot].next = entry;
+		tails[level][slot] = entry;
+
+		occupied[level] |= 1L << slot;
+	}
+
+	private int lowestLevel() {
+		int level = 0;
+		while (occupied[level] == 0)
+			level++;
+
+		return level;
+	}
+
+	private Entry first() {
+		Lib.assertTrue(size > 0);
+
+		if (first == null) {
+			int level = lowestLevel();
+			int slot = Long.numberOfTrailingZeros(occupied[level]);
+
+			// a slot above level zero holds a range of times
+			first = heads[level][slot];
+			for (Entry e = first.next; e != null; e = e.next) {
+				if (e.time < first.time)
+					first = e;
+			}
+		}
+
+		return first;
+	}
+
+	/**
+	 * Test that this module is working, by checking that it orders a random
+	 * workload exactly like a <tt>TreeInterruptQueue</tt>.
+	 */
+	public static void selfTest() {
+		ArrayList<Integer> wheelOrder = new ArrayList<Integer>();
+		ArrayList<Integer> treeOrder = new ArrayList<Integer>();
+
+		runWorkload(new TimingWheel(), wheelOrder);
+		runWorkload(new TreeInterruptQueue(), treeOrder);
+
+		Lib.assertTrue(wheelOrder.size() == 20000);
+		Lib.assertTrue(wheelOrder.equals(treeOrder));
+	}
+
+	private static void runWorkload(InterruptQueue queue,
+			final ArrayList<Integer> order) {
+		Random random = new Random(120);
+		long time = 0;
+
+		for (int i = 0; i < 20000; i++) {
+			// mostly short delays, with plenty of ties and a few long ones
+			long delay;
+			switch (random.nextInt(4)) {
+			case 0:
+				delay = 1 + random.nextInt(4);
+				break;
+			case 1:
+				delay = 1 + random.nextInt(600);
+				break;
+			case 2:
+				delay = 1 + random.nextInt(300000);
+				break;
+			default:
+				delay = 1 + (random.nextLong() & 0xFFFFFFFFFFL);
+				break;
+			}
+
+			final Integer id = i;
+			queue.add(time + delay, "test", () -> order.add(id));
+
+			time += random.nextInt(100);
+			while (!queue.isEmpty() && queue.firstTime() <= time)
+				queue.removeFirst().run();
+		}
+
+		while (!queue.isEmpty())
+			queue.removeFirst().run();
+	}
+
+	/**
+	 * Compare the cost of a <tt>TimingWheel</tt> and a
+	 * <tt>TreeInterruptQueue</tt> when thousands of interrupts are pending. Each
+	 * operation removes the first interrupt and schedules a new one, as the
+	 * devices do when they reschedule themselves.
+	 */
+	public static void benchmark() {
+		for (int pending = 1000; pending <= 100000; pending *= 10) {
+			long tree = timeWorkload(new TreeInterruptQueue(), pending);
+			long wheel = timeWorkload(new TimingWheel(), pending);
+
+			System.out.println("Interrupt queue, " + pending
+					+ " pending: tree " + tree + " ns/op, wheel " + wheel
+					+ " ns/op");
+		}
+	}
+
+	private static long timeWorkload(InterruptQueue queue, int pending) {
+		final int operations = 1000000;
+		Random random = new Random(pending);
+		Runnable handler = () -> {
+		};
+
+		for (int i = 0; i < pending; i++)
+			queue.add(1 + random.nextInt(10 * pending), "benchmark", handler);
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < operations; i++) {
+			long time = queue.firstTime();
+			queue.removeFirst();
+			queue.add(time + 1 + random.nextInt(10 * pending), "benchmark",
+					handler);
+		}
+
+		return (System.nanoTime() - start) / operations;
+	}
+
+	private static class Entry {
+		long time;
+
+		String type;
+
+		Runnable handler;
+
+		Entry next;
+	}
+
+	private static final int slotBits = 6;
+
+	private static final int slotsPerLevel = 1 << slotBits;
+
+	private static final int slotMask = slotsPerLevel - 1;
+
+	private static final int numLevels = (63 + slotBits - 1) / slotBits;
+
+	private Entry[][] heads, tails;
+
+	/** A bit for every non-empty slot, for each level. */
+	private long[] occupied;
+
+	/** The time of the last interrupt removed. */
+	private long now = 0;
+
+	private int size = 0;
+
+	/** The first interrupt, or <tt>null</tt> if it has to be found again. */
+	private Entry first = null;
+
+	/** Entries that are not in use. */
+	private Entry free = null;
+}
@@ -0,0 +1,88 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.TreeSet;
+import java.util.Iterator;
+
+/**
+ * An interrupt queue kept in a balanced tree. Adding and removing an interrupt
+ * take time logarithmic in the number of pending interrupts.
+ */
+class TreeInterruptQueue implements InterruptQueue {
+	/**
+	 * Allocate a new, empty interrupt queue.
+	 */
+	public TreeInterruptQueue() {
+		pending = new TreeSet<PendingInterrupt>();
+	}
+
+	public void add(long time, String type, Runnable handler) {
+		pending.add(new PendingInterrupt(time, type, handler));
+	}
+
+	public boolean isEmpty() {
+		return pending.isEmpty();
+	}
+
+	public int size() {
+		return pending.size();
+	}
+
+	public long firstTime() {
+		return pending.first().time;
+	}
+
+	public String firstType() {
+		return pending.first().type;
+	}
+
+	public Runnable removeFirst() {
+		return pending.pollFirst().handler;
+	}
+
+	public void print() {
+		for (Iterator i = pending.iterator(); i.hasNext();) {
+			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+			System.out.println("  " + toOccur.type + ", scheduled at "
+					+ toOccur.time);
+		}
+	}
+
+	private class PendingInterrupt implements Comparable {
+		PendingInterrupt(long time, String type, Runnable handler) {
+			this.time = time;
+			this.type = type;
+			this.handler = handler;
+			this.id = numPendingInterruptsCreated++;
+		}
+
+		public int compareTo(Object o) {
+			PendingInterrupt toOccur = (PendingInterrupt) o;
+
+			// can't return 0 for unequal objects, so check all fields
+			if (time < toOccur.time)
+				return -1;
+			else if (time > toOccur.time)
+				return 1;
+			else if (id < toOccur.id)
+				return -1;
+			else if (id > toOccur.id)
+				return 1;
+			else
+				return 0;
+		}
+
+		long time;
+
+		String type;
+
+		Runnable handler;
+
+		private long id;
+	}
+
+	private long numPendingInterruptsCreated = 0;
+
+	private TreeSet<PendingInterrupt> pending;
+}
@@ -14,6 +14,12 @@ import nachos.threads.*;
  * from the network and to place them in the appropriate queues. This cannot be
  * done in the receive interrupt handler because each queue (implemented with a
  * <tt>SynchList</tt>) is protected by a lock.
+ * 
+ * <p>
+ * Each queue holds at most <tt>mailboxCapacity</tt> messages. A message that
+ * arrives for a full queue is dropped, as if the network had lost it, so that a
+ * receiver that falls behind neither holds up delivery to the other ports nor
+ * makes its queue grow without bound.
  */
 public class PostOffice {
 	/**
@@ -28,7 +34,7 @@ public class PostOffice {
 
 		queues = new SynchList[MailMessage.portLimit];
 		for (int i = 0; i < queues.length; i++)
-			queues[i] = new SynchList();
+			queues[i] = new SynchList(mailboxCapacity);
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -94,7 +100,9 @@ public class PostOffice {
 						+ ": " + mail);
 
 			// atomically add message to the mailbox and wake a waiting thread
-			queues[mail.dstPort].add(mail);
+			if (!queues[mail.dstPort].offer(mail))
+				Lib.debug(dbgNet, "mailbox on port " + mail.dstPort
+						+ " is full, dropping mail");
 		}
 	}
 
@@ -130,6 +138,11 @@ public class PostOffice {
 		messageSent.V();
 	}
 
+	/**
+	 * The most messages that can wait in the queue of each port.
+	 */
+	public static final int mailboxCapacity = 64;
+
 	private SynchList[] queues;
 
 	private Semaphore messageReceived; // V'd when a message can be dequeued
@@ -157,6 +157,17 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the earliest time at which a tick could invoke an interrupt
+		 * handler or have any other effect beyond advancing the simulated
+		 * time. Until then, user ticks may be accounted for in a batch. The
+		 * result is only valid until kernel code next runs.
+		 * 
+		 * @return the time of the next pending interrupt, or the time of the
+		 * next tick if every tick must be taken individually.
+		 */
+		public long nextDue();
 	}
 
 	/**
@@ -0,0 +1,41 @@
+/*
+ * fork1.c
+ *
+ * Fork a child that changes a global variable and exits, and check that
+ * the parent's copy is unchanged and that join collects the child's exit
+ * status.  Requires fork, join, exit and write.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+
+int value = 1;
+
+int main (int argc, char *argv[])
+{
+    int pid, status, r;
+
+    pid = fork ();
+    if (pid < 0) {
+        printf ("fork failed\n");
+        exit (-1);
+    }
+
+    if (pid == 0) {
+        value = 2;
+        exit (value);
+    }
+
+    r = join (pid, &status);
+    if (r != 1 || status != 2) {
+        printf ("join returned %d with status %d, expected 1 and 2\n", r, status);
+        exit (-1);
+    }
+    if (value != 1) {
+        printf ("the child's write changed the parent's value to %d\n", value);
+        exit (-1);
+    }
+
+    printf ("fork1 passed\n");
+    return 0;
+}
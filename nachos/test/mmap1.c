@@ -0,0 +1,64 @@
+/*
+ * mmap1.c
+ *
+ * Map a file into memory, change it through the map, unmap it, and check
+ * with read that the changes reached the file.  Requires creat, open,
+ * close, read, write, mmap and munmap.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+
+#define LENGTH 3000
+
+char buf[LENGTH];
+
+int main (int argc, char *argv[])
+{
+    char *map;
+    int fd, i;
+
+    for (i = 0; i < LENGTH; i++)
+        buf[i] = 'a' + i % 26;
+
+    fd = creat ("mmap1.out");
+    if (fd < 0 || write (fd, buf, LENGTH) != LENGTH) {
+        printf ("failed to create mmap1.out\n");
+        exit (-1);
+    }
+
+    map = mmap (fd, LENGTH);
+    close (fd);
+    if (map == (char *) -1) {
+        printf ("mmap failed\n");
+        exit (-1);
+    }
+
+    for (i = 0; i < LENGTH; i++) {
+        if (map[i] != buf[i]) {
+            printf ("byte %d of the map is '%c', expected '%c'\n", i, map[i], buf[i]);
+            exit (-1);
+        }
+        map[i] = buf[i] - 'a' + 'A';
+    }
+
+    if (munmap (map) != 0 || munmap (map) != -1) {
+        printf ("munmap failed\n");
+        exit (-1);
+    }
+
+    fd = open ("mmap1.out");
+    if (fd < 0 || read (fd, buf, LENGTH) != LENGTH) {
+        printf ("failed to read mmap1.out back\n");
+        exit (-1);
+    }
+    for (i = 0; i < LENGTH; i++) {
+        if (buf[i] != 'A' + i % 26) {
+            printf ("byte %d of the file is '%c', expected '%c'\n", i, buf[i], 'A' + i % 26);
+            exit (-1);
+        }
+    }
+
+    printf ("mmap1 passed\n");
+    return 0;
+}
@@ -25,6 +25,10 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
+#define syscallMunmap		15
+#define syscallFork		16
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -89,6 +93,20 @@ void exit(int status);
  */
 int exec(char *file, int argc, char *argv[]);
 
+/**
+ * Create a child process that is a copy of the current process, with a new
+ * unique process ID. Both processes return from fork(): the child with 0, and
+ * the parent with the child's process ID, which can be passed to join().
+ *
+ * The child shares the parent's open file descriptors, including their file
+ * positions, as well as its memory until either process writes to it: each
+ * page is copied the first time one of them writes to it. If there is no
+ * memory left for the copy, the process that wrote is killed.
+ *
+ * On error, returns -1. fork() is not available with demand paging.
+ */
+int fork();
+
 /**
  * Suspend execution of the current process until the child process specified
  * by the processID argument has exited. If the child has already exited by the
@@ -181,6 +199,36 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/**
+ * A buffer for readv() and writev(): its address and its length in bytes.
+ */
+struct iovec {
+    void *base;
+    int length;
+};
+
+/**
+ * Like read(), but read into the iovcnt buffers described by iov, filling
+ * each one before moving on to the next. The whole transfer is done in one
+ * system call, so it is cheaper than calling read() for each buffer.
+ *
+ * Returns the total number of bytes read, or -1 if an error occurred. As well
+ * as the errors of read(), it is an error if iovcnt is negative or more than
+ * 16, or if iov itself is invalid.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but write the iovcnt buffers described by iov, one after the
+ * other, in one system call. Useful for writing out a message that is built
+ * from several pieces without first copying them together.
+ *
+ * Returns the total number of bytes written, or -1 if an error occurred. As
+ * well as the errors of write(), it is an error if iovcnt is negative or more
+ * than 16, or if iov itself is invalid.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or
  * stream and may be reused. The resources associated with the file
@@ -204,18 +252,29 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * Map the first length bytes of the file referenced by fileDescriptor into
+ * memory, at an address chosen by the kernel above the program's stack. Pages
+ * of the map are read from the file when they are first touched; bytes past
+ * the end of the file read as zero, and changes to them are not saved; other
+ * changes made through the map are written back to the file, at the latest
+ * when the map is removed.
+ *
+ * The map keeps the file open by itself: closing fileDescriptor does not
+ * remove it. Maps are removed by munmap(), or when the process exits.
  *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * Returns the address of the map on success, or (char *) -1 if an error
+ * occurred. This can happen if fileDescriptor is invalid or does not refer to
+ * a file, or if length is not positive.
+ */
+char *mmap(int fileDescriptor, int length);
+
+/**
+ * Remove the map at address, as returned by mmap(), writing any changes made
+ * through it back to the file.
  *
- * Returns the length of the file on success, or -1 if an error occurred.
+ * Returns 0 on success, or -1 if there is no map at address.
  */
-int mmap(int fileDescriptor, char *address);
+int munmap(char *address);
 
 /**
  * Attempt to initiate a new connection to the specified port on the specified
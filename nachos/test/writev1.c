@@ -0,0 +1,62 @@
+/*
+ * writev1.c
+ *
+ * Write a message built from several pieces to a file with writev, read
+ * it back into differently sized pieces with readv, and check that the
+ * bytes arrive in order.  Requires creat, open, close, readv and writev.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+
+int main (int argc, char *argv[])
+{
+    char *pieces[] = { "roses are red, ", "", "violets are blue, ",
+                       "I love Nachos ", "and so do you\n" };
+    struct iovec out[5], in[3];
+    char a[10], b[1], c[100];
+    char *expected = "roses are red, violets are blue, I love Nachos and so do you\n";
+    int fd, i, len = 0, r;
+
+    for (i = 0; i < 5; i++) {
+        out[i].base = pieces[i];
+        out[i].length = strlen (pieces[i]);
+        len += out[i].length;
+    }
+
+    fd = creat ("writev1.out");
+    if (fd < 0) {
+        printf ("failed to create writev1.out\n");
+        exit (-1);
+    }
+    r = writev (fd, out, 5);
+    if (r != len) {
+        printf ("writev returned %d, expected %d\n", r, len);
+        exit (-1);
+    }
+    close (fd);
+
+    in[0].base = a; in[0].length = sizeof (a);
+    in[1].base = b; in[1].length = sizeof (b);
+    in[2].base = c; in[2].length = sizeof (c);
+
+    fd = open ("writev1.out");
+    r = readv (fd, in, 3);
+    if (r != len) {
+        printf ("readv returned %d, expected %d\n", r, len);
+        exit (-1);
+    }
+    close (fd);
+
+    for (i = 0; i < len; i++) {
+        char got = (i < 10) ? a[i] : (i < 11) ? b[0] : c[i - 11];
+        if (got != expected[i]) {
+            printf ("byte %d is '%c', expected '%c'\n", i, got, expected[i]);
+            exit (-1);
+        }
+    }
+
+    /* write the message to the console in one system call */
+    writev (fdStandardOutput, out, 5);
+    return 0;
+}
@@ -1,7 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.*;
+import java.util.HashMap;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
@@ -9,45 +9,66 @@ import java.util.*;
  */
 public class Alarm {
 	/**
-	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
-	 * alarm's callback.
+	 * Allocate a new Alarm. Set the machine's timer interrupt handler and
+	 * alarm interrupt handler to this alarm's callbacks.
 	 * 
 	 * <p>
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
 	public Alarm() {
-        wakeUpTimeMap = new HashMap<>();
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
 			}
 		});
+		Machine.timer().setAlarmHandler(new Runnable() {
+			public void run() {
+				alarmInterrupt();
+			}
+		});
 	}
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
 	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * thread to yield if the scheduler decides its quantum is over, forcing a
+	 * context switch if there is another thread that should be run.
 	 */
 	public void timerInterrupt() {
-        boolean intStatus = Machine.interrupt().disable();
-        Iterator<Map.Entry<KThread, Long>> it =  wakeUpTimeMap.entrySet().iterator();
-        while(it.hasNext()){
-            Map.Entry<KThread, Long> record = it.next();
-            if(record.getValue() <= Machine.timer().getTime()){
-                record.getKey().ready();
-                it.remove();
-            }
-        }
-        Machine.interrupt().restore(intStatus);
-		KThread.yield();
+		KThread.preempt();
+	}
+
+	/**
+	 * The alarm interrupt handler. This is called by the machine's timer when
+	 * the alarm set for the earliest wake time goes off. Expires every timeout
+	 * whose time has come, sets the alarm for the next wake time, and yields
+	 * so that a woken thread can run at once if the scheduler prefers it.
+	 */
+	public void alarmInterrupt() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean woken = false;
+		long time = Machine.timer().getTime();
+		while (size > 0 && heap[0].wakeTime <= time) {
+			Timeout timeout = heap[0];
+			remove(timeout);
+			timeout.expire();
+			woken = true;
+		}
+
+		if (size > 0)
+			Machine.timer().setAlarm(heap[0].wakeTime);
+
+		Machine.interrupt().restore(intStatus);
+
+		if (woken)
+			KThread.yield();
 	}
 
 	/**
 	 * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
-	 * in the timer interrupt handler. The thread must be woken up (placed in
-	 * the scheduler ready set) during the first timer interrupt where
+	 * in the alarm interrupt handler. The thread must be woken up (placed in
+	 * the scheduler ready set) at the first clock tick where
 	 * 
 	 * <p>
 	 * <blockquote> (current time) >= (WaitUntil called time)+(x) </blockquote>
@@ -59,9 +80,15 @@ public class Alarm {
 	public void waitUntil(long x) {
 		if (x < 0)
 		    return;
-		long wakeTime = Machine.timer().getTime() + x;
-        wakeUpTimeMap.put(KThread.currentThread(), wakeTime);
 		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		Lib.assertTrue(!waiters.containsKey(thread));
+
+		Sleeper sleeper = new Sleeper(thread);
+		waiters.put(thread, sleeper);
+		schedule(sleeper, Machine.timer().getTime() + x);
+
         KThread.sleep();
 		Machine.interrupt().restore(intStatus);
 	}
@@ -77,14 +104,122 @@ public class Alarm {
 	 */
     public boolean cancel(KThread thread) {
         boolean intStatus = Machine.interrupt().disable();
-        boolean ret = wakeUpTimeMap.remove(thread) != null;
+        Sleeper sleeper = waiters.remove(thread);
+        boolean ret = sleeper != null;
         if(ret){
+            remove(sleeper);
             thread.ready();
         }
         Machine.interrupt().restore(intStatus);
         return ret;
 	}
 
+	/**
+	 * Set a timeout to expire at the specified time, or at the first clock tick
+	 * after it. The timeout must not already be set. Interrupts must be
+	 * disabled.
+	 * 
+	 * @param timeout the timeout to set.
+	 * @param wakeTime the time at which it should expire.
+	 */
+	void schedule(Timeout timeout, long wakeTime) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(!timeout.isScheduled());
+
+		timeout.wakeTime = wakeTime;
+		timeout.order = numTimeouts++;
+
+		if (size == heap.length) {
+			Timeout[] newHeap = new Timeout[2 * heap.length];
+			System.arraycopy(heap, 0, newHeap, 0, size);
+			heap = newHeap;
+		}
+		heap[size] = timeout;
+		timeout.index = size++;
+		siftUp(timeout.index);
+
+		if (heap[0] == timeout)
+			Machine.timer().setAlarm(wakeTime);
+	}
+
+	/**
+	 * Clear a timeout that has not expired yet, without waking its thread.
+	 * Interrupts must be disabled.
+	 * 
+	 * @param timeout the timeout to clear.
+	 */
+	void cancel(Timeout timeout) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (timeout.isScheduled())
+			remove(timeout);
+	}
+
+	/**
+	 * Take a timeout out of the heap, and cancel the alarm if no timeout is
+	 * left for it to wake.
+	 */
+	private void remove(Timeout timeout) {
+		int index = timeout.index;
+		timeout.index = -1;
+
+		Timeout last = heap[--size];
+		heap[size] = null;
+
+		if (last != timeout) {
+			heap[index] = last;
+			last.index = index;
+			siftDown(index);
+			siftUp(last.index);
+		}
+
+		if (size == 0)
+			Machine.timer().cancelAlarm();
+	}
+
+	private boolean before(Timeout a, Timeout b) {
+		return a.wakeTime < b.wakeTime
+				|| (a.wakeTime == b.wakeTime && a.order < b.order);
+	}
+
+	private void siftUp(int index) {
+		Timeout timeout = heap[index];
+
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (!before(timeout, heap[parent]))
+				break;
+
+			heap[index] = heap[parent];
+			heap[index].index = index;
+			index = parent;
+		}
+
+		heap[index] = timeout;
+		timeout.index = index;
+	}
+
+	private void siftDown(int index) {
+		Timeout timeout = heap[index];
+
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && before(heap[child + 1], heap[child]))
+				child++;
+			if (!before(heap[child], timeout))
+				break;
+
+			heap[index] = heap[child];
+			heap[index].index = index;
+			index = child;
+		}
+
+		heap[index] = timeout;
+		timeout.index = index;
+	}
+
     public static void waitUntilTest() {
         int durations[] = {1*1000, 2*1000, 3*1000, -1*1000};
         long t0, t1;
@@ -145,11 +280,108 @@ public class Alarm {
 
         System.out.println("cancelTwiceTest end.");
     }
+	/**
+	 * Measure how long timer interrupts take while many threads are asleep.
+	 */
+	public static void benchmark() {
+		final int numSleepers = 200, numInterrupts = 100000;
+
+		KThread[] sleepers = new KThread[numSleepers];
+		for (int i = 0; i < numSleepers; i++) {
+			final long delay = Long.MAX_VALUE / 2 + i;
+			sleepers[i] = new KThread(new Runnable() {
+				public void run() {
+					ThreadedKernel.alarm.waitUntil(delay);
+				}
+			}).setName("sleeper " + i);
+			sleepers[i].fork();
+		}
+		KThread.yield();
+
+		// keep the CPU busy, so that the timer interrupts are all there is
+		long start = System.nanoTime();
+		long end = Machine.timer().getTime() + (long) numInterrupts
+				* Stats.TimerTicks;
+		while (Machine.timer().getTime() < end) {
+			boolean intStatus = Machine.interrupt().disable();
+			Machine.interrupt().restore(intStatus);
+		}
+		long time = System.nanoTime() - start;
+
+		for (int i = 0; i < numSleepers; i++) {
+			Lib.assertTrue(ThreadedKernel.alarm.cancel(sleepers[i]));
+			sleepers[i].join();
+		}
+
+		System.out.println("Alarm: " + numInterrupts + " timer interrupts with "
+				+ numSleepers + " threads asleep in " + time / 1000000 + " ms");
+	}
+
     public static void selfTest() {
         waitUntilTest();
         cancelTest();
         cancelTwiceTest();
     }
 
-    private HashMap<KThread, Long> wakeUpTimeMap = null;
+	/**
+	 * A wake-up time for a thread, kept in a binary min-heap ordered by wake
+	 * time and, among equal wake times, by the order the timeouts were set.
+	 * When the time comes, the alarm interrupt handler takes the timeout out
+	 * of the heap and calls <tt>expire()</tt>, with interrupts disabled.
+	 */
+	abstract static class Timeout {
+		/**
+		 * Allocate a new timeout for the specified thread.
+		 * 
+		 * @param thread the thread to wake up.
+		 */
+		Timeout(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Wake up the thread, which has slept until its time.
+		 */
+		abstract void expire();
+
+		/**
+		 * Return whether this timeout is set and has not expired yet.
+		 */
+		boolean isScheduled() {
+			return index >= 0;
+		}
+
+		/** The thread to wake up. */
+		KThread thread;
+
+		private long wakeTime;
+
+		private long order;
+
+		/** The position of this timeout in the heap, or -1 if not set. */
+		private int index = -1;
+	}
+
+	/**
+	 * The timeout of a thread sleeping in <tt>waitUntil()</tt>.
+	 */
+	private class Sleeper extends Timeout {
+		Sleeper(KThread thread) {
+			super(thread);
+		}
+
+		void expire() {
+			waiters.remove(thread);
+			thread.ready();
+		}
+	}
+
+	private Timeout[] heap = new Timeout[16];
+
+	private int size = 0;
+
+	private long numTimeouts = 0;
+
+	/** The timeout of each thread sleeping in <tt>waitUntil()</tt>. */
+	private HashMap<KThread, Sleeper> waiters = new HashMap<KThread, Sleeper>();
 }
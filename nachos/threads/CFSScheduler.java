@@ -0,0 +1,410 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A completely fair scheduler, in the style of the Linux CFS.
+ *
+ * <p>
+ * Every thread accumulates <i>virtual runtime</i>: the ticks it has spent
+ * running, as measured by <tt>Machine.timer().getTime()</tt> each time
+ * <tt>KThread.run()</tt> switches threads, scaled down by a weight that grows
+ * with its priority. Waiting threads are kept in a red-black tree ordered by
+ * virtual runtime, and the next thread to be dequeued is always the one that
+ * has had the least, so each thread gets CPU time in proportion to its weight,
+ * without depending on luck. At a timer interrupt, the running thread is
+ * preempted once its virtual runtime is no longer the smallest.
+ *
+ * <p>
+ * Priorities range from 0 to 7, as in <tt>PriorityScheduler</tt>. Each
+ * priority has a weight 25% higher than the one below it, so a thread at
+ * priority 7 gets nearly five times the CPU time of one at priority 0.
+ * Priority is not donated.
+ *
+ * <p>
+ * A thread that has been blocked is placed no further back than a little
+ * below the lowest virtual runtime of the queue it joins, so that it runs soon
+ * but cannot monopolize the CPU to make up for the time it slept.
+ */
+public class CFSScheduler extends Scheduler {
+	/**
+	 * Allocate a new completely fair scheduler.
+	 */
+	public CFSScheduler() {
+	}
+
+	/**
+	 * Allocate a new thread queue ordered by virtual runtime.
+	 *
+	 * @param transferPriority ignored; CFS queues never donate priority.
+	 * @return a new thread queue ordered by virtual runtime.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new CFSQueue();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).priority;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).priority;
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		ThreadState state = getThreadState(thread);
+
+		// the time run so far is charged at the old weight
+		if (thread == KThread.currentThread())
+			charge(state);
+
+		state.priority = priority;
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Charge the ticks that <tt>previous</tt> has run to its virtual runtime,
+	 * and start timing <tt>next</tt>.
+	 */
+	public void switchThreads(KThread previous, KThread next) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(previous);
+
+		// a thread that yielded was charged as it joined the ready queue, so
+		// there is normally nothing to move here
+		CFSQueue queue = state.waitingOn;
+		if (queue != null && state.lastRun != Machine.timer().getTime()) {
+			queue.waitQueue.remove(state);
+			charge(state);
+			queue.waitQueue.add(state);
+		}
+		else {
+			charge(state);
+		}
+
+		getThreadState(next).lastRun = Machine.timer().getTime();
+	}
+
+	/**
+	 * Charge the running thread for the ticks since it was last charged, and
+	 * preempt it if another ready thread has now had less virtual runtime.
+	 */
+	public boolean timerInterrupt(KThread thread, ThreadQueue readyQueue) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+		charge(state);
+
+		TreeSet<ThreadState> ready = ((CFSQueue) readyQueue).waitQueue;
+
+		return !ready.isEmpty() && ready.first().vruntime < state.vruntime;
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		CFSScheduler scheduler = new CFSScheduler();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int i = priorityMinimum; i < priorityMaximum; i++)
+			Lib.assertTrue(weights[i] < weights[i + 1]);
+
+		// three threads run 500 tick slices, and get CPU time in proportion
+		// to the weights of their priorities
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		KThread[] threads = new KThread[3];
+		int[] priorities = { priorityDefault, priorityDefault, 3 };
+		long[] ran = new long[threads.length];
+		long weight = 0;
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("cfs test " + i);
+			scheduler.setPriority(threads[i], priorities[i]);
+			queue.waitForAccess(threads[i]);
+			weight += weights[priorities[i]];
+		}
+
+		for (long i = 0; i < weight; i++) {
+			KThread thread = queue.nextThread();
+			ThreadState state = scheduler.getThreadState(thread);
+			scheduler.charge(state, 500);
+			for (int j = 0; j < threads.length; j++) {
+				if (threads[j] == thread)
+					ran[j] += 500;
+			}
+			queue.waitForAccess(thread);
+		}
+
+		for (int j = 0; j < threads.length; j++)
+			Lib.assertTrue(Math.abs(ran[j] - 500 * weights[priorities[j]]) <= 1000);
+
+		// a new or woken thread is placed just ahead of the waiting threads
+		KThread sleeper = new KThread().setName("cfs test sleeper");
+		queue.waitForAccess(sleeper);
+		ThreadState state = scheduler.getThreadState(sleeper);
+		Lib.assertTrue(state.vruntime > 0
+				&& state.vruntime < scheduler.getThreadState(threads[0]).vruntime);
+		Lib.assertTrue(queue.nextThread() == sleeper);
+
+		for (int i = 0; i < threads.length; i++)
+			queue.nextThread();
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Measure the scheduling latency of threads that sleep and wake up while
+	 * CPU-bound threads are running, under whatever scheduler the kernel is
+	 * using. Run once with each of <tt>RoundRobinScheduler</tt> and
+	 * <tt>CFSScheduler</tt> as <tt>ThreadedKernel.scheduler</tt> to compare
+	 * them.
+	 */
+	public static void benchmark() {
+		final int numHogs = 4, numSleepers = 4, numSleeps = 50;
+		final long[] lateness = new long[numSleepers * numSleeps];
+
+		KThread[] threads = new KThread[numHogs + numSleepers];
+		for (int i = 0; i < numHogs; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < 40000; j++) {
+						boolean intStatus = Machine.interrupt().disable();
+						Machine.interrupt().restore(intStatus);
+					}
+				}
+			}).setName("hog " + i);
+		}
+		for (int i = 0; i < numSleepers; i++) {
+			final int first = i * numSleeps;
+			threads[numHogs + i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < numSleeps; j++) {
+						long delay = 1000 + Lib.random(2000);
+						long start = Machine.timer().getTime();
+						ThreadedKernel.alarm.waitUntil(delay);
+						lateness[first + j] = Machine.timer().getTime() - start
+								- delay;
+					}
+				}
+			}).setName("sleeper " + i);
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		Arrays.sort(lateness);
+		System.out.println("wake-up latency under "
+				+ ThreadedKernel.scheduler.getClass().getName() + ": p50 "
+				+ lateness[lateness.length / 2] + ", p99 "
+				+ lateness[lateness.length * 99 / 100] + ", max "
+				+ lateness[lateness.length - 1] + " ticks");
+	}
+
+	/**
+	 * The default priority for a new thread. Do not change this value.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum priority that a thread can have. Do not change this value.
+	 */
+	public static final int priorityMinimum = 0;
+
+	/**
+	 * The maximum priority that a thread can have. Do not change this value.
+	 */
+	public static final int priorityMaximum = 7;
+
+	/**
+	 * The weight of each priority, rising by 25% per priority from 1024 at
+	 * the default.
+	 */
+	private static final int[] weights = { 819, 1024, 1280, 1600, 2000, 2500,
+			3125, 3906 };
+
+	/**
+	 * How far below the lowest virtual runtime of a queue a thread that has
+	 * been blocked may be placed.
+	 */
+	private static final long sleeperCredit = Stats.TimerTicks;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Charge the ticks since the thread was last charged to its virtual
+	 * runtime.
+	 */
+	private void charge(ThreadState state) {
+		long time = Machine.timer().getTime();
+
+		charge(state, time - state.lastRun);
+		state.lastRun = time;
+	}
+
+	private void charge(ThreadState state, long ticks) {
+		state.vruntime += ticks * weights[priorityDefault]
+				/ weights[state.priority];
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> kept as a red-black tree of threads, ordered by
+	 * virtual runtime and, among equal virtual runtimes, by the order they
+	 * joined.
+	 */
+	protected class CFSQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingOn == null);
+
+			// the running thread is charged before it is placed; any other
+			// thread is new or has been blocked
+			if (thread == KThread.currentThread())
+				charge(state);
+			else
+				state.vruntime = Math.max(state.vruntime, minVruntime
+						- sleeperCredit);
+
+			state.order = numJoins++;
+			state.waitingOn = this;
+			waitQueue.add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState next = waitQueue.pollFirst();
+			if (next == null)
+				return null;
+
+			next.waitingOn = null;
+			minVruntime = Math.max(minVruntime, next.vruntime);
+
+			return next.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(waitQueue.isEmpty());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Iterator<ThreadState> i = waitQueue.iterator(); i.hasNext();) {
+				ThreadState state = i.next();
+				System.out.print(state.thread + " (" + state.vruntime + ") ");
+			}
+		}
+
+		private TreeSet<ThreadState> waitQueue = new TreeSet<ThreadState>(
+				new Comparator<ThreadState>() {
+					public int compare(ThreadState a, ThreadState b) {
+						if (a.vruntime != b.vruntime)
+							return a.vruntime < b.vruntime ? -1 : 1;
+						return Long.compare(a.order, b.order);
+					}
+				});
+
+		/** The virtual runtime of the last thread dequeued, or more. */
+		private long minVruntime = 0;
+
+		private long numJoins = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The priority of the associated thread. */
+		protected int priority = priorityDefault;
+
+		/** The weighted ticks the thread has run. */
+		protected long vruntime = 0;
+
+		/** The time the thread was last charged for running. */
+		protected long lastRun = 0;
+
+		/** The queue the thread is waiting on, if any. */
+		protected CFSQueue waitingOn = null;
+
+		/** The order in which the thread joined <tt>waitingOn</tt>. */
+		long order;
+	}
+}
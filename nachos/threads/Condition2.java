@@ -22,7 +22,6 @@ public class Condition2 {
 	 */
 	public Condition2(Lock conditionLock) {
 		this.conditionLock = conditionLock;
-		waitQueue = new LinkedList<KThread>();
 	}
 
 	/**
@@ -35,10 +34,10 @@ public class Condition2 {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
 		boolean intStatus = Machine.interrupt().disable();
-        waitQueue.add(KThread.currentThread());
+		link(new Waiter(KThread.currentThread()));
 		conditionLock.release();
-        KThread.sleep();
-        Machine.interrupt().restore(intStatus);
+		KThread.sleep();
+		Machine.interrupt().restore(intStatus);
 
 		conditionLock.acquire();
 	}
@@ -50,14 +49,10 @@ public class Condition2 {
 	public void wake() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-        boolean intStatus = Machine.interrupt().disable();
-        if (!waitQueue.isEmpty()){
-            KThread t = waitQueue.removeFirst();
-            if(!ThreadedKernel.alarm.cancel(t) && t.isSleep()){
-                t.ready();
-            }
-        }
-        Machine.interrupt().restore(intStatus);
+		boolean intStatus = Machine.interrupt().disable();
+		if (first != null)
+			wake(first);
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -67,14 +62,10 @@ public class Condition2 {
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-        boolean intStatus = Machine.interrupt().disable();
-        while (!waitQueue.isEmpty()){
-			KThread t = waitQueue.removeFirst();
-            if(!ThreadedKernel.alarm.cancel(t) && t.isSleep()){
-                t.ready();
-            }
-        }
-        Machine.interrupt().restore(intStatus);
+		boolean intStatus = Machine.interrupt().disable();
+		while (first != null)
+			wake(first);
+		Machine.interrupt().restore(intStatus);
 	}
 
         /**
@@ -85,20 +76,87 @@ public class Condition2 {
 	 * associated lock.  The thread will automatically reacquire
 	 * the lock before <tt>sleep()</tt> returns.
 	 */
-    public void sleepFor(long timeout) {
+	public void sleepFor(long timeout) {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+		if (timeout < 0)
+			return;
+
 		boolean intStatus = Machine.interrupt().disable();
-        waitQueue.add(KThread.currentThread());
+		Waiter waiter = new Waiter(KThread.currentThread());
+		link(waiter);
+		ThreadedKernel.alarm.schedule(waiter, Machine.timer().getTime()
+				+ timeout);
 		conditionLock.release();
-        ThreadedKernel.alarm.waitUntil(timeout);
-        waitQueue.remove(KThread.currentThread());
-        System.out.println(waitQueue);
-        Machine.interrupt().restore(intStatus);
+		KThread.sleep();
+		Machine.interrupt().restore(intStatus);
 
 		conditionLock.acquire();
 	}
 
+	/**
+	 * Take a waiter off the queue, clear its timeout if it has one, and wake
+	 * its thread. Whichever of this and the timeout comes first takes the
+	 * waiter off both, so a thread is never woken twice.
+	 */
+	private void wake(Waiter waiter) {
+		unlink(waiter);
+		ThreadedKernel.alarm.cancel(waiter);
+		waiter.thread.ready();
+	}
+
+	private void link(Waiter waiter) {
+		waiter.prev = last;
+		if (last == null)
+			first = waiter;
+		else
+			last.next = waiter;
+		last = waiter;
+	}
+
+	private void unlink(Waiter waiter) {
+		if (waiter.prev == null)
+			first = waiter.next;
+		else
+			waiter.prev.next = waiter.next;
+		if (waiter.next == null)
+			last = waiter.prev;
+		else
+			waiter.next.prev = waiter.prev;
+		waiter.prev = waiter.next = null;
+	}
+
+	/**
+	 * Return whether a thread is sleeping on this condition variable.
+	 */
+	private boolean isWaiting(KThread thread) {
+		for (Waiter waiter = first; waiter != null; waiter = waiter.next) {
+			if (waiter.thread == thread)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * A thread sleeping on this condition variable, linked into its queue.
+	 * The waiter is also the timeout of <tt>sleepFor()</tt>.
+	 */
+	private class Waiter extends Alarm.Timeout {
+		Waiter(KThread thread) {
+			super(thread);
+		}
+
+		/**
+		 * The timeout is over before anyone called <tt>wake()</tt>.
+		 */
+		void expire() {
+			unlink(this);
+			thread.ready();
+		}
+
+		Waiter prev = null, next = null;
+	}
+
     private static class InterlockTest {
         private static Lock lock;
         private static Condition2 cv;
@@ -191,8 +249,8 @@ public class Condition2 {
         long t1 = Machine.timer().getTime();
         System.out.println(KThread.currentThread().getName() +
                 " woke up, slept for " + (t1 - t0) + " ticks");
-        System.out.println(KThread.currentThread().getName() + " should be removed from waitQueue: " + !cv.waitQueue.contains(KThread.currentThread()));
-		Lib.assertTrue(!cv.waitQueue.contains(KThread.currentThread()));
+        System.out.println(KThread.currentThread().getName() + " should be removed from waitQueue: " + !cv.isWaiting(KThread.currentThread()));
+		Lib.assertTrue(!cv.isWaiting(KThread.currentThread()));
         lock.release();
         System.out.println("sleepForTest end.");
     }
@@ -215,8 +273,8 @@ public class Condition2 {
                     System.out.println(KThread.currentThread().getName() +
                             " woke up, slept for " + (t1 - t0) + " ticks");
                     Lib.assertTrue((t1-t0)<20000);
-                    System.out.println(KThread.currentThread().getName() + " should be removed from waitQueue: " + !cv.waitQueue.contains(KThread.currentThread()));
-                    Lib.assertTrue(!cv.waitQueue.contains(KThread.currentThread()));
+                    System.out.println(KThread.currentThread().getName() + " should be removed from waitQueue: " + !cv.isWaiting(KThread.currentThread()));
+                    Lib.assertTrue(!cv.isWaiting(KThread.currentThread()));
                     lock.release();
                 }
             }).setName("child");
@@ -234,13 +292,64 @@ public class Condition2 {
         }
     }
 
+    private static class sleepForManyTest {
+        private static int sleeping = 0, woken = 0, done = 0;
+
+        public sleepForManyTest() {
+            final int n = 100;
+            final Lock lock = new Lock();
+            final Condition2 cv = new Condition2(lock);
+
+            System.out.println("sleepForManyTest:");
+            KThread[] threads = new KThread[n];
+            for (int i = 0; i < n; i++) {
+                final long timeout = 10000 + 10 * i;
+                threads[i] = new KThread(new Runnable() {
+                    public void run() {
+                        lock.acquire();
+                        sleeping++;
+                        long t0 = Machine.timer().getTime();
+                        cv.sleepFor(timeout);
+                        long t1 = Machine.timer().getTime();
+                        if (t1 - t0 < timeout)
+                            woken++;
+                        done++;
+                        lock.release();
+                    }
+                }).setName("sleeper " + i);
+                threads[i].fork();
+            }
+
+            lock.acquire();
+            while (sleeping < n) {
+                lock.release();
+                KThread.yield();
+                lock.acquire();
+            }
+            // half are woken, and the rest time out
+            for (int i = 0; i < n / 2; i++)
+                cv.wake();
+            lock.release();
+
+            for (int i = 0; i < n; i++)
+                threads[i].join();
+
+            System.out.println(woken + " of " + done + " sleepers woken before their timeout");
+            Lib.assertTrue(woken == n / 2 && done == n);
+            Lib.assertTrue(cv.first == null);
+            System.out.println("sleepForManyTest end.");
+        }
+    }
+
     public static void selfTest() {
         new InterlockTest();
         cvTest5();
         sleepForTest();
         new sleepForWakeTest();
+        new sleepForManyTest();
     }
 
     private Lock conditionLock;
-	private LinkedList<KThread> waitQueue = null;
+
+	private Waiter first = null, last = null;
 }
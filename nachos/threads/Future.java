@@ -1,12 +1,32 @@
 package nachos.threads;
 
 import java.util.*;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntConsumer;
 import java.util.function.IntSupplier;
+import java.util.function.IntUnaryOperator;
 import nachos.machine.*;
 
 /**
  * A <i>Future</i> is a convenient mechanism for using asynchonous
  * operations.
+ *
+ * <p>
+ * Functions are run by a fixed pool of worker threads, shared by all
+ * futures, rather than by a new KThread each. The size of the pool is
+ * set by <tt>Future.numWorkers</tt> in the configuration file. A
+ * function that blocks holds on to its worker while it does, so a
+ * function should not wait for a future whose function has not run
+ * yet, or the pool can run out of workers.
+ *
+ * <p>
+ * Futures can be chained: <i>thenApply</i> and <i>thenCombine</i>
+ * return a new future computed from the results of others, and
+ * <i>allOf</i> and <i>anyOf</i> wait for a group of futures. Like
+ * callbacks added with <i>whenComplete</i>, the functions they are
+ * given are run by the thread that completes the last future they
+ * depend on, or at once by the caller if that future has already
+ * completed, so they should be short and should not block.
  */
 public class Future {
     /**
@@ -16,20 +36,22 @@ public class Future {
      * of invoking <i>function</i>.
      */
     public Future (IntSupplier function) {
-        lock = new Lock();
-        cv = new Condition2(lock);
-        finished = false;
+        this();
 
-        KThread t = new KThread( new Runnable () {
+        submit(new Runnable () {
             public void run() {
-                ret = function.getAsInt();
-                lock.acquire();
-                finished = true;
-                cv.wakeAll();
-                lock.release();
+                complete(function.getAsInt());
             }
         });
-        t.fork();
+    }
+
+    /**
+     * Instantiate a new <i>Future</i> with no function, to be
+     * completed by <i>complete</i>.
+     */
+    private Future () {
+        waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+        finished = false;
     }
 
     /**
@@ -42,13 +64,183 @@ public class Future {
      * threads), and it should always return the same value.
      */
     public int get () {
-        lock.acquire();
-        if(!finished){
-            cv.sleep();
+        boolean intStatus = Machine.interrupt().disable();
+        while(!finished){
+            waitQueue.waitForAccess(KThread.currentThread());
+            KThread.sleep();
         }
-        lock.release();
+        Machine.interrupt().restore(intStatus);
         return ret;
     }
+
+    /**
+     * Return whether the function of this <i>Future</i> has
+     * completed, without blocking.
+     */
+    public boolean isDone () {
+        return finished;
+    }
+
+    /**
+     * Invoke <i>callback</i> with the result of this <i>Future</i>
+     * once it has completed: at once, in the calling thread, if it
+     * already has, or else in the thread that completes it.
+     * Callbacks are invoked in the order they were added.
+     */
+    public void whenComplete (IntConsumer callback) {
+        boolean intStatus = Machine.interrupt().disable();
+        if(!finished){
+            callbacks.add(callback);
+            Machine.interrupt().restore(intStatus);
+            return;
+        }
+        Machine.interrupt().restore(intStatus);
+        callback.accept(ret);
+    }
+
+    /**
+     * Return a new <i>Future</i> whose result is <i>function</i>
+     * applied to the result of this one.
+     */
+    public Future thenApply (IntUnaryOperator function) {
+        Future f = new Future();
+        whenComplete(new IntConsumer () {
+            public void accept(int value) {
+                f.complete(function.applyAsInt(value));
+            }
+        });
+        return f;
+    }
+
+    /**
+     * Return a new <i>Future</i> whose result is <i>function</i>
+     * applied to the results of this one and <i>other</i>, once both
+     * have completed.
+     */
+    public Future thenCombine (Future other, IntBinaryOperator function) {
+        Future f = new Future();
+        whenComplete(new IntConsumer () {
+            public void accept(int value) {
+                other.whenComplete(new IntConsumer () {
+                    public void accept(int otherValue) {
+                        f.complete(function.applyAsInt(value, otherValue));
+                    }
+                });
+            }
+        });
+        return f;
+    }
+
+    /**
+     * Return a new <i>Future</i> that completes once all of
+     * <i>futures</i> have, with the number of futures as its result.
+     */
+    public static Future allOf (Future... futures) {
+        Future f = new Future();
+        int[] remaining = { futures.length };
+        if(futures.length == 0){
+            f.complete(0);
+        }
+        for(Future g : futures){
+            g.whenComplete(new IntConsumer () {
+                public void accept(int value) {
+                    if(--remaining[0] == 0){
+                        f.complete(futures.length);
+                    }
+                }
+            });
+        }
+        return f;
+    }
+
+    /**
+     * Return a new <i>Future</i> that completes as soon as any of
+     * <i>futures</i> does, with that future's result. There must be
+     * at least one future.
+     */
+    public static Future anyOf (Future... futures) {
+        Lib.assertTrue(futures.length > 0);
+
+        Future f = new Future();
+        for(Future g : futures){
+            g.whenComplete(new IntConsumer () {
+                public void accept(int value) {
+                    f.complete(value);
+                }
+            });
+        }
+        return f;
+    }
+
+    /**
+     * Complete this <i>Future</i> with <i>value</i>, waking up the
+     * threads blocked in <i>get</i> and then invoking the callbacks.
+     * Does nothing if this <i>Future</i> has already completed.
+     */
+    private void complete (int value) {
+        boolean intStatus = Machine.interrupt().disable();
+        if(finished){
+            Machine.interrupt().restore(intStatus);
+            return;
+        }
+        ret = value;
+        finished = true;
+        KThread thread;
+        while((thread = waitQueue.nextThread()) != null){
+            thread.ready();
+        }
+        ArrayList<IntConsumer> toRun = callbacks;
+        callbacks = null;
+        Machine.interrupt().restore(intStatus);
+
+        for(IntConsumer callback : toRun){
+            callback.accept(value);
+        }
+    }
+
+    /**
+     * Queue <i>task</i> to be run by the worker pool, starting the
+     * workers the first time.
+     */
+    private static void submit (Runnable task) {
+        boolean intStatus = Machine.interrupt().disable();
+        if(idleWorkers == null){
+            idleWorkers = ThreadedKernel.scheduler.newThreadQueue(false);
+            int numWorkers = Config.getInteger("Future.numWorkers", 4);
+            Lib.assertTrue(numWorkers > 0);
+            for(int i = 0; i < numWorkers; i++){
+                new KThread( new Runnable () {
+                    public void run() {
+                        while(true){
+                            nextTask().run();
+                        }
+                    }
+                }).setName("future worker " + i).fork();
+            }
+        }
+        tasks.add(task);
+        KThread worker = idleWorkers.nextThread();
+        if(worker != null){
+            worker.ready();
+        }
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Take the next task off the queue, waiting as an idle worker
+     * until there is one.
+     */
+    private static Runnable nextTask () {
+        boolean intStatus = Machine.interrupt().disable();
+        while(tasks.isEmpty()){
+            idleWorkers.waitForAccess(KThread.currentThread());
+            KThread.sleep();
+        }
+        Runnable task = tasks.removeFirst();
+        Machine.interrupt().restore(intStatus);
+        return task;
+    }
+
     public static void basicTest(){
         IntSupplier fib = new IntSupplier() {
                 private int previous = 0;
@@ -101,11 +293,96 @@ public class Future {
         System.out.println("Future Test end.");
     }
 
+    public static void chainTest(){
+        System.out.println("Future chain Test:");
+        Future a = new Future(() -> 6);
+        Future b = new Future(() -> {
+            ThreadedKernel.alarm.waitUntil(1000);
+            return 7;
+        });
+        Future c = a.thenCombine(b, (x, y) -> x * y);
+        Future d = c.thenApply(x -> x + 1);
+        Lib.assertTrue(d.get() == 43);
+        Lib.assertTrue(c.isDone() && c.get() == 42);
+
+        // a callback added after completion runs at once
+        int[] seen = { 0 };
+        d.whenComplete(x -> seen[0] = x);
+        Lib.assertTrue(seen[0] == 43);
+
+        Future slow = new Future(() -> {
+            ThreadedKernel.alarm.waitUntil(5000);
+            return 1;
+        });
+        Future fast = new Future(() -> 2);
+        Lib.assertTrue(Future.anyOf(slow, fast).get() == 2);
+        Lib.assertTrue(Future.allOf(slow, fast).get() == 2);
+        Lib.assertTrue(slow.isDone());
+        Lib.assertTrue(Future.allOf().get() == 0);
+
+        // fan out more futures than there can be threads at once
+        Future[] squares = new Future[TCB.maxThreads + 50];
+        for(int i = 0; i < squares.length; i++){
+            int n = i;
+            squares[i] = new Future(() -> n * n);
+        }
+        Future.allOf(squares).get();
+        for(int i = 0; i < squares.length; i++){
+            Lib.assertTrue(squares[i].isDone() && squares[i].get() == i * i);
+        }
+        System.out.println("Future chain Test end.");
+    }
+
+    /**
+     * Measure the cost of running many small functions on futures,
+     * compared with forking a KThread for each one.
+     */
+    public static void benchmark(){
+        final int numTasks = 5000, batch = 100;
+
+        long start = System.nanoTime();
+        long startTicks = Machine.timer().getTime();
+        Future[] futures = new Future[numTasks];
+        for(int i = 0; i < numTasks; i++){
+            int n = i;
+            futures[i] = new Future(() -> n);
+        }
+        Future.allOf(futures).get();
+        System.out.println("Future: " + numTasks + " tasks on the worker pool in "
+                + (System.nanoTime() - start) / 1000000 + " ms, "
+                + (Machine.timer().getTime() - startTicks) + " ticks");
+
+        // one KThread per task, forked in batches to stay below maxThreads
+        start = System.nanoTime();
+        startTicks = Machine.timer().getTime();
+        for(int i = 0; i < numTasks; i += batch){
+            KThread[] threads = new KThread[batch];
+            for(int j = 0; j < batch; j++){
+                threads[j] = new KThread(() -> {});
+                threads[j].fork();
+            }
+            for(int j = 0; j < batch; j++){
+                threads[j].join();
+            }
+        }
+        System.out.println("Future: " + numTasks + " tasks on their own KThreads in "
+                + (System.nanoTime() - start) / 1000000 + " ms, "
+                + (Machine.timer().getTime() - startTicks) + " ticks");
+    }
+
     public static void selfTest(){
         basicTest();
+        chainTest();
     }
-    private Lock lock = null;  
-    private Condition2 cv = null;  
-    private Boolean finished = null;  
+    private ThreadQueue waitQueue = null;  
+    private boolean finished = false;  
     private Integer ret = null;
+    /** Callbacks to invoke on completion, or null once completed. */
+    private ArrayList<IntConsumer> callbacks = new ArrayList<IntConsumer>();
+
+    /** Tasks waiting for a worker. */
+    private static LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+    /** Workers waiting for a task, or null until the first is submitted. */
+    private static ThreadQueue idleWorkers = null;
 }
@@ -237,6 +237,23 @@ public class KThread {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Relinquish the CPU at a timer interrupt, if the scheduler decides that
+	 * the current thread's quantum is over. Called by the timer interrupt
+	 * handler.
+	 */
+	public static void preempt() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean expired = ThreadedKernel.scheduler.timerInterrupt(
+				currentThread, readyQueue);
+
+		Machine.interrupt().restore(intStatus);
+
+		if (expired)
+			KThread.yield();
+	}
+
 	/**
 	 * Relinquish the CPU, because the current thread has either finished or it
 	 * is blocked. This thread must be the current thread.
@@ -331,8 +348,14 @@ public class KThread {
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
+			// nothing can become ready until an interrupt handler runs, so
+			// the idle thread may as well skip straight to the next interrupt
+			if (!Lib.test(dbgThread))
+				Machine.interrupt().skipIdleTime();
+
 			nextThread = idleThread;
+		}
 
 		nextThread.run();
 	}
@@ -366,6 +389,8 @@ public class KThread {
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 				+ " to: " + toString());
 
+		ThreadedKernel.scheduler.switchThreads(currentThread, this);
+
 		currentThread = this;
 
 		tcb.contextSwitch();
@@ -500,6 +525,33 @@ public class KThread {
         // joinBy2ErrorTest();
 	}
 
+	/**
+	 * Measure how many context switches per second two threads yielding to
+	 * each other can make, as in the ping-pong test in <tt>selfTest()</tt>.
+	 */
+	public static void benchmark() {
+		final int switches = 100000;
+
+		KThread pong = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < switches / 2; i++)
+					KThread.yield();
+			}
+		}).setName("pong");
+		pong.fork();
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < switches / 2; i++)
+			KThread.yield();
+		pong.join();
+
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("KThread ping-pong: " + switches * 1000000000L
+				/ elapsed + " context switches/s");
+	}
+
 	private static final char dbgThread = 't';
 
 	/**
@@ -36,12 +36,17 @@ public class Lock {
 		KThread thread = KThread.currentThread();
 
 		if (lockHolder != null) {
+			long waitStart = Machine.timer().getTime();
 			waitQueue.waitForAccess(thread);
 			KThread.sleep();
+			if (profile != null)
+				profile.acquiredAfterWait(Machine.timer().getTime() - waitStart);
 		}
 		else {
 			waitQueue.acquire(thread);
 			lockHolder = thread;
+			if (profile != null)
+				profile.acquired();
 		}
 
 		Lib.assertTrue(lockHolder == thread);
@@ -76,4 +81,7 @@ public class Lock {
 
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(true);
+
+	/** Contention statistics, if they are being kept. */
+	private LockProfile profile = LockProfile.forNew("Lock");
 }
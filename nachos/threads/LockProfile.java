@@ -0,0 +1,225 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Contention statistics for one <tt>Lock</tt> or <tt>Semaphore</tt>: how often
+ * it was acquired, how often a thread had to wait to acquire it, and for how
+ * many ticks. Profiles are grouped by the place in the kernel that created
+ * them, so that both a busy creation site and a busy instance stand out.
+ *
+ * <p>
+ * Each site keeps totals over all of its instances, but only holds on to the
+ * first <tt>maxTrackedInstances</tt> of them, so that sites which create a
+ * short-lived object on every use (such as <tt>Condition.sleep()</tt>) do not
+ * make the profile grow without bound. The report lists the tracked instances
+ * that were acquired more than once, and sums up the rest in one line.
+ *
+ * <p>
+ * Statistics are kept only if <tt>ThreadedKernel.profileLocks</tt> is set in
+ * the configuration file, and are printed when the kernel terminates. Otherwise
+ * a lock or semaphore has no profile, and pays only for a <tt>null</tt> check.
+ */
+class LockProfile {
+	private LockProfile(Site site, int id) {
+		this.site = site;
+		this.id = id;
+	}
+
+	/**
+	 * Return a new profile to keep statistics for a new lock or semaphore in,
+	 * counted with all others of its kind created at the same place.
+	 *
+	 * @param kind the kind of object, such as <tt>"Lock"</tt>.
+	 * @return the profile, or <tt>null</tt> if profiling is disabled.
+	 */
+	static LockProfile forNew(String kind) {
+		if (!enabled)
+			return null;
+
+		String name = kind + " created at " + creationSite();
+
+		Site site = sites.get(name);
+		if (site == null) {
+			site = new Site(name);
+			sites.put(name, site);
+		}
+
+		LockProfile profile = new LockProfile(site, ++numProfiles);
+		site.numInstances++;
+		if (site.instances.size() < maxTrackedInstances)
+			site.instances.add(profile);
+		return profile;
+	}
+
+	/**
+	 * Record an acquire that did not have to wait.
+	 */
+	void acquired() {
+		numAcquires++;
+		site.total.numAcquires++;
+	}
+
+	/**
+	 * Record an acquire that had to wait.
+	 *
+	 * @param ticks the number of ticks the acquiring thread waited.
+	 */
+	void acquiredAfterWait(long ticks) {
+		record(ticks);
+		site.total.record(ticks);
+	}
+
+	private void record(long ticks) {
+		numAcquires++;
+		numContended++;
+		waitTicks += ticks;
+		maxWaitTicks = Math.max(maxWaitTicks, ticks);
+	}
+
+	private String statistics() {
+		return "acquires " + numAcquires + ", contended " + numContended
+				+ ", wait ticks " + waitTicks + ", max " + maxWaitTicks;
+	}
+
+	/**
+	 * Print the totals of every creation site whose locks or semaphores were
+	 * acquired. Under each site, print the statistics of each tracked instance
+	 * that was acquired more than once, and then one line for all the other
+	 * instances. Sites and instances with the most ticks spent waiting come
+	 * first. Does nothing if profiling is disabled.
+	 */
+	static void print() {
+		if (!enabled)
+			return;
+
+		final Comparator<LockProfile> byWaiting = new Comparator<LockProfile>() {
+			public int compare(LockProfile a, LockProfile b) {
+				if (a.waitTicks != b.waitTicks)
+					return a.waitTicks > b.waitTicks ? -1 : 1;
+				if (a.numAcquires != b.numAcquires)
+					return Long.compare(b.numAcquires, a.numAcquires);
+				return Integer.compare(a.id, b.id);
+			}
+		};
+
+		ArrayList<Site> sorted = new ArrayList<Site>();
+		for (Site site : sites.values()) {
+			if (site.total.numAcquires > 0)
+				sorted.add(site);
+		}
+		Collections.sort(sorted, new Comparator<Site>() {
+			public int compare(Site a, Site b) {
+				return byWaiting.compare(a.total, b.total);
+			}
+		});
+
+		System.out.println("Lock contention:");
+		for (Site site : sorted) {
+			System.out.println("  " + site.name + " (" + site.numInstances
+					+ (site.numInstances == 1 ? " instance" : " instances")
+					+ "): " + site.total.statistics());
+
+			// one-instance sites are fully described by their totals
+			if (site.numInstances == 1)
+				continue;
+
+			ArrayList<LockProfile> instances = new ArrayList<LockProfile>(
+					site.instances);
+			Collections.sort(instances, byWaiting);
+
+			int numListed = 0;
+			long numAcquires = 0, numContended = 0, waitTicks = 0;
+			for (LockProfile profile : instances) {
+				if (profile.numAcquires <= 1)
+					continue;
+
+				System.out.println("    #" + profile.id + ": "
+						+ profile.statistics());
+				numListed++;
+				numAcquires += profile.numAcquires;
+				numContended += profile.numContended;
+				waitTicks += profile.waitTicks;
+			}
+
+			int numOthers = site.numInstances - numListed;
+			if (numListed > 0 && numOthers > 0)
+				System.out.println("    " + numOthers + " other"
+						+ (numOthers == 1 ? " instance" : " instances")
+						+ ": acquires " + (site.total.numAcquires - numAcquires)
+						+ ", contended " + (site.total.numContended - numContended)
+						+ ", wait ticks " + (site.total.waitTicks - waitTicks));
+		}
+	}
+
+	/**
+	 * Return the method and line that created the lock or semaphore being
+	 * constructed, skipping the constructor frames of this package's
+	 * synchronization classes.
+	 */
+	private static String creationSite() {
+		StackTraceElement[] trace = new Throwable().getStackTrace();
+
+		for (int i = 0; i < trace.length; i++) {
+			String className = trace[i].getClassName();
+			if (className.equals(LockProfile.class.getName()))
+				continue;
+			if ((className.equals(Lock.class.getName())
+					|| className.equals(Semaphore.class.getName()))
+					&& trace[i].getMethodName().equals("<init>"))
+				continue;
+
+			return className + "." + trace[i].getMethodName() + "("
+					+ trace[i].getFileName() + ":" + trace[i].getLineNumber()
+					+ ")";
+		}
+
+		return "unknown";
+	}
+
+	/**
+	 * The locks or semaphores created at one place in the kernel.
+	 */
+	private static class Site {
+		Site(String name) {
+			this.name = name;
+		}
+
+		String name;
+
+		/** The statistics of all instances together. */
+		LockProfile total = new LockProfile(this, 0);
+
+		int numInstances = 0;
+
+		/** The first instances created here. */
+		ArrayList<LockProfile> instances = new ArrayList<LockProfile>();
+	}
+
+	private static final boolean enabled = Config.getBoolean(
+			"ThreadedKernel.profileLocks", false);
+
+	/** The most instances of one site whose statistics are kept apart. */
+	private static final int maxTrackedInstances = 16;
+
+	private static HashMap<String, Site> sites = new HashMap<String, Site>();
+
+	private static int numProfiles = 0;
+
+	private Site site;
+
+	private int id;
+
+	private long numAcquires = 0;
+
+	private long numContended = 0;
+
+	private long waitTicks = 0;
+
+	private long maxWaitTicks = 0;
+}
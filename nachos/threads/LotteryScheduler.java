@@ -8,23 +8,30 @@ import java.util.Iterator;
 
 /**
  * A scheduler that chooses threads using a lottery.
- * 
+ *
  * <p>
  * A lottery scheduler associates a number of tickets with each thread. When a
  * thread needs to be dequeued, a random lottery is held, among all the tickets
  * of all the threads waiting to be dequeued. The thread that holds the winning
  * ticket is chosen.
- * 
+ *
  * <p>
  * Note that a lottery scheduler must be able to handle a lot of tickets
  * (sometimes billions), so it is not acceptable to maintain state for every
  * ticket.
- * 
+ *
  * <p>
  * A lottery scheduler must partially solve the priority inversion problem; in
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * drawing the winner, adding a thread, and changing a thread's tickets all take
+ * time logarithmic in the number of waiting threads. A queue donates the sum of
+ * its waiters' tickets, so a change of tickets is passed along the chain of
+ * owners as the same difference, without adding anything up again.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
@@ -35,13 +42,452 @@ public class LotteryScheduler extends PriorityScheduler {
 
 	/**
 	 * Allocate a new lottery thread queue.
-	 * 
+	 *
 	 * @param transferPriority <tt>true</tt> if this queue should transfer
 	 * tickets from waiting threads to the owning thread.
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= ticketsMinimum && priority <= ticketsMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == ticketsMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == ticketsMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		LotteryScheduler scheduler = new LotteryScheduler();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// tickets are donated along a chain of owners, and taken back
+		KThread low = new KThread().setName("low");
+		KThread mid = new KThread().setName("mid");
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		scheduler.setPriority(low, 1);
+		scheduler.setPriority(mid, 2);
+		scheduler.setPriority(a, 5);
+		scheduler.setPriority(b, 10);
+
+		ThreadQueue lowLock = scheduler.newThreadQueue(true);
+		ThreadQueue midLock = scheduler.newThreadQueue(true);
+		lowLock.acquire(low);
+		midLock.acquire(mid);
+
+		lowLock.waitForAccess(a);
+		lowLock.waitForAccess(b);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 16);
+
+		midLock.waitForAccess(low);
+		Lib.assertTrue(scheduler.getEffectivePriority(mid) == 18);
+
+		scheduler.setPriority(a, 100);
+		Lib.assertTrue(scheduler.getEffectivePriority(mid) == 113);
+
+		KThread winner = lowLock.nextThread();
+		KThread loser = (winner == a) ? b : a;
+		Lib.assertTrue(winner == a || winner == b);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 1);
+		Lib.assertTrue(scheduler.getEffectivePriority(mid) == 3);
+		Lib.assertTrue(scheduler.getEffectivePriority(winner) == scheduler
+				.getPriority(a) + scheduler.getPriority(b));
+
+		Lib.assertTrue(lowLock.nextThread() == loser);
+		Lib.assertTrue(scheduler.getEffectivePriority(winner) == scheduler
+				.getPriority(winner));
+		Lib.assertTrue(lowLock.nextThread() == null);
+
+		// huge ticket totals still draw every thread
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		for (int i = 0; i < 1000; i++) {
+			KThread thread = new KThread().setName("lottery test " + i);
+			scheduler.setPriority(thread, ticketsMaximum - i);
+			queue.waitForAccess(thread);
+		}
+
+		HashSet<KThread> drawn = new HashSet<KThread>();
+		for (int i = 0; i < 1000; i++)
+			Lib.assertTrue(drawn.add(queue.nextThread()));
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Measure how long <tt>nextThread()</tt> takes as the number of waiting
+	 * threads grows. Each operation draws a winner and puts it back.
+	 */
+	public static void benchmark() {
+		LotteryScheduler scheduler = new LotteryScheduler();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int size = 10; size <= 10000; size *= 10) {
+			ThreadQueue queue = scheduler.newThreadQueue(false);
+			for (int i = 0; i < size; i++) {
+				KThread thread = new KThread().setName("lottery benchmark");
+				scheduler.setPriority(thread, 1 + Lib.random(1000000));
+				queue.waitForAccess(thread);
+			}
+
+			final int operations = 200000;
+			long start = System.nanoTime();
+
+			for (int i = 0; i < operations; i++)
+				queue.waitForAccess(queue.nextThread());
+
+			long elapsed = System.nanoTime() - start;
+
+			System.out.println("LotteryScheduler, " + size
+					+ " waiting: nextThread() " + elapsed / operations + " ns");
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int ticketsDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int ticketsMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int ticketsMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Add the specified number of tickets to a thread's effective tickets,
+	 * and pass the difference on to the queue it waits on and that queue's
+	 * owner, and so on along the chain. A chain that runs into a cycle of
+	 * deadlocked threads stops after going around it once.
+	 */
+	private void addTickets(LotteryThreadState state, long delta) {
+		long epoch = ++numPropagations;
+
+		while (delta != 0) {
+			state.effectiveTickets += delta;
+			state.lastPropagation = epoch;
+
+			LotteryQueue queue = (LotteryQueue) state.waitingOn;
+			if (queue == null)
+				return;
+
+			queue.adjust(state.slot, delta);
+
+			if (!queue.transferPriority || queue.owner == null)
+				return;
+
+			state = queue.owner;
+			if (state.lastPropagation == epoch)
+				return;
+
+			state.donatedTickets += delta;
+		}
+	}
+
+	/**
+	 * Add the specified number of donated tickets to a thread.
+	 */
+	private void donate(LotteryThreadState state, long delta) {
+		state.donatedTickets += delta;
+		addTickets(state, delta);
+	}
+
+	private long numPropagations = 0;
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * The waiting threads occupy slots of a Fenwick tree of ticket counts.
+	 */
+	protected class LotteryQueue extends PriorityQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			long oldTotal = total;
+			LotteryThreadState next = (LotteryThreadState) pickNextThread();
+
+			if (next != null) {
+				remove(next.slot);
+				next.waitingOn = null;
+			}
+
+			setOwner(next, oldTotal);
+
+			return (next == null) ? null : next.thread;
+		}
+
+		/**
+		 * Draw the winner of a lottery among the waiting threads. Each call
+		 * holds a new lottery, so the result is only the thread that
+		 * <tt>nextThread()</tt> would return if it happened to draw the same
+		 * ticket.
+		 *
+		 * @return the winning thread, or <tt>null</tt> if no thread is waiting.
+		 */
+		protected ThreadState pickNextThread() {
+			if (total == 0)
+				return null;
+
+			long ticket;
+			if (total <= Integer.MAX_VALUE)
+				ticket = Lib.random((int) total);
+			else
+				ticket = Math.min((long) (Lib.random() * total), total - 1);
+
+			// find the first slot whose prefix sum exceeds the ticket
+			int slot = 0;
+			for (int step = Integer.highestOneBit(capacity); step > 0; step >>= 1) {
+				int next = slot + step;
+				if (next <= capacity && tree[next] <= ticket) {
+					slot = next;
+					ticket -= tree[next];
+				}
+			}
+
+			return slots[slot + 1];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 1; i <= capacity; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + " ("
+							+ slots[i].effectiveTickets + ") ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Make the specified thread the owner of this queue, moving the
+		 * tickets this queue donates from the old owner to the new one.
+		 *
+		 * @param newOwner the new owner, or <tt>null</tt>.
+		 * @param oldTotal the tickets this queue donated to the old owner.
+		 */
+		void setOwner(LotteryThreadState newOwner, long oldTotal) {
+			if (transferPriority && owner != null)
+				donate(owner, -oldTotal);
+
+			owner = newOwner;
+
+			if (transferPriority && owner != null)
+				donate(owner, total);
+		}
+
+		/**
+		 * Put a thread in a free slot. The caller passes the change in total
+		 * on to the owner.
+		 */
+		void insert(LotteryThreadState state) {
+			if (numFree == 0)
+				grow();
+
+			int slot = free[--numFree];
+			slots[slot] = state;
+			state.slot = slot;
+
+			adjust(slot, state.effectiveTickets);
+		}
+
+		/**
+		 * Empty a slot. The caller passes the change in total on to the owner.
+		 */
+		void remove(int slot) {
+			adjust(slot, -slots[slot].effectiveTickets);
+
+			slots[slot] = null;
+			free[numFree++] = slot;
+		}
+
+		/**
+		 * Add the specified number of tickets to the thread in a slot.
+		 */
+		void adjust(int slot, long delta) {
+			total += delta;
+
+			for (int i = slot; i <= capacity; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/**
+		 * Double the number of slots, and rebuild the tree in linear time.
+		 */
+		private void grow() {
+			int newCapacity = Math.max(2 * capacity, 8);
+
+			LotteryThreadState[] newSlots = new LotteryThreadState[newCapacity + 1];
+			System.arraycopy(slots, 0, newSlots, 0, capacity + 1);
+
+			long[] newTree = new long[newCapacity + 1];
+			for (int i = 1; i <= newCapacity; i++) {
+				if (newSlots[i] != null)
+					newTree[i] += newSlots[i].effectiveTickets;
+
+				int parent = i + (i & -i);
+				if (parent <= newCapacity)
+					newTree[parent] += newTree[i];
+			}
+
+			int[] newFree = new int[newCapacity];
+			for (int i = newCapacity; i > capacity; i--)
+				newFree[numFree++] = i;
+
+			slots = newSlots;
+			tree = newTree;
+			free = newFree;
+			capacity = newCapacity;
+		}
+
+		/** The number of slots. Slots are numbered from 1. */
+		private int capacity = 0;
+
+		/** The thread in each slot, or <tt>null</tt>. */
+		private LotteryThreadState[] slots = new LotteryThreadState[1];
+
+		/** The Fenwick tree of the tickets in each slot. */
+		private long[] tree = new long[1];
+
+		/** A stack of free slots. */
+		private int[] free = new int[0];
+
+		private int numFree = 0;
+
+		/** The tickets of all waiting threads. */
+		private long total = 0;
+
+		/** The thread that last acquired this queue, or <tt>null</tt>. */
+		private LotteryThreadState owner = null;
+	}
+
+	/**
+	 * The scheduling state of a thread in a lottery scheduler. The priority of
+	 * the thread is its number of tickets.
+	 */
+	protected class LotteryThreadState extends ThreadState {
+		/**
+		 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+		 * with the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryThreadState(KThread thread) {
+			// the superclass sets the default priority, so the fields below
+			// must not have initializers
+			super(thread);
+		}
+
+		/**
+		 * Return the effective number of tickets of the associated thread,
+		 * including the tickets donated to it. Totals too large for an
+		 * <tt>int</tt> are reported as <tt>Integer.MAX_VALUE</tt>.
+		 *
+		 * @return the effective tickets of the associated thread.
+		 */
+		public int getEffectivePriority() {
+			return (int) Math.min(effectiveTickets, Integer.MAX_VALUE);
+		}
+
+		public void setPriority(int priority) {
+			long delta = priority - this.priority;
+			if (delta == 0)
+				return;
+
+			this.priority = priority;
+
+			addTickets(this, delta);
+		}
+
+		public void waitForAccess(PriorityQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
+
+			LotteryQueue queue = (LotteryQueue) waitQueue;
+
+			waitingOn = queue;
+			queue.insert(this);
+
+			if (queue.transferPriority && queue.owner != null)
+				donate(queue.owner, effectiveTickets);
+		}
+
+		public void acquire(PriorityQueue waitQueue) {
+			LotteryQueue queue = (LotteryQueue) waitQueue;
+
+			queue.setOwner(this, queue.total);
+		}
+
+		/** The tickets of the thread, plus those donated to it. */
+		long effectiveTickets;
+
+		/** The tickets donated by the queues this thread owns. */
+		long donatedTickets;
+
+		/** The slot of this thread in <tt>waitingOn</tt>. */
+		int slot;
+
+		/** The last propagation that changed this thread's tickets. */
+		long lastPropagation;
 	}
 }
@@ -0,0 +1,406 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Waiting threads are kept in one FIFO queue per level, and the next thread to
+ * be dequeued is always the first thread of the highest non-empty level. Level
+ * 0 is the highest. A thread's level is not set by the user, but follows from
+ * how it has behaved:
+ *
+ * <ul>
+ * <li>A new thread starts at level 0.
+ * <li>A thread that is still running when its quantum runs out is moved down
+ * one level. The quantum of each level is a number of timer interrupts, set by
+ * <tt>MLFQScheduler.quantum0</tt>, <tt>MLFQScheduler.quantum1</tt>, and so
+ * on; by default it doubles with each level.
+ * <li>A thread that blocks, whether in <tt>Lock.acquire()</tt>,
+ * <tt>Semaphore.P()</tt>, console I/O or anything else, keeps its level and
+ * starts a new quantum when it is woken. A thread that merely yields does not,
+ * so that yielding just before the timer cannot be used to stay at the top.
+ * <li>Every <tt>MLFQScheduler.boostInterval</tt> timer interrupts, every
+ * thread is moved back to level 0, so that CPU-bound threads cannot be starved
+ * by a stream of interactive ones.
+ * </ul>
+ *
+ * <p>
+ * A running thread is also preempted at a timer interrupt when a thread at a
+ * higher level is ready to run, even if its quantum is not over.
+ *
+ * <p>
+ * The priority of a thread, as seen through <tt>getPriority()</tt> and
+ * <tt>setPriority()</tt>, is its level counted from the bottom, from 0 up to
+ * <tt>MLFQScheduler.levels</tt> - 1. Setting it starts a new quantum.
+ * Priority is not donated.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new MLFQ scheduler, reading its levels, quanta and boost
+	 * interval from the configuration.
+	 */
+	public MLFQScheduler() {
+		levels = Config.getInteger("MLFQScheduler.levels", 4);
+		Lib.assertTrue(levels >= 1);
+
+		quantum = new int[levels];
+		for (int i = 0; i < levels; i++) {
+			quantum[i] = Config.getInteger("MLFQScheduler.quantum" + i, 1 << i);
+			Lib.assertTrue(quantum[i] >= 1);
+		}
+
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 64);
+		Lib.assertTrue(boostInterval >= 0);
+	}
+
+	/**
+	 * Allocate a new multi-level thread queue.
+	 *
+	 * @param transferPriority ignored; MLFQ queues never donate priority.
+	 * @return a new multi-level thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQueue();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+		state.boost();
+
+		return levels - 1 - state.level;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= 0 && priority < levels);
+
+		getThreadState(thread).setLevel(levels - 1 - priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == levels - 1)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == 0)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Charge a timer interrupt to the running thread. Move it down a level and
+	 * preempt it if its quantum is over, and otherwise preempt it only if a
+	 * thread at a higher level is ready to run.
+	 */
+	public boolean timerInterrupt(KThread thread, ThreadQueue readyQueue) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (boostInterval > 0 && ++numInterrupts % boostInterval == 0)
+			numBoosts++;
+
+		ThreadState state = getThreadState(thread);
+		state.boost();
+
+		if (++state.used >= quantum[state.level]) {
+			state.used = 0;
+			if (state.level < levels - 1)
+				state.level++;
+
+			return true;
+		}
+
+		return ((MLFQueue) readyQueue).topLevel() < state.level;
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		MLFQScheduler scheduler = new MLFQScheduler();
+		int top = scheduler.levels - 1;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		KThread a = new KThread().setName("mlfq test a");
+		KThread b = new KThread().setName("mlfq test b");
+		queue.waitForAccess(a);
+		queue.waitForAccess(b);
+		Lib.assertTrue(queue.nextThread() == a);
+
+		// a runs its whole quantum at the top level, and is moved down
+		for (int i = 1; i < scheduler.quantum[0]; i++)
+			Lib.assertTrue(!scheduler.timerInterrupt(a, queue));
+		Lib.assertTrue(scheduler.timerInterrupt(a, queue));
+		Lib.assertTrue(scheduler.getPriority(a) == Math.max(top - 1, 0));
+
+		if (top > 0 && scheduler.quantum[1] > 1) {
+			// b now waits above a, so a is preempted at once
+			Lib.assertTrue(scheduler.timerInterrupt(a, queue));
+
+			// a blocks just before the end of each quantum, keeping its level
+			queue.waitForAccess(a);
+			Lib.assertTrue(queue.nextThread() == b);
+			Lib.assertTrue(queue.nextThread() == a);
+			for (int j = 0; j < 3; j++) {
+				for (int i = 1; i < scheduler.quantum[1]; i++)
+					Lib.assertTrue(!scheduler.timerInterrupt(a, queue));
+				queue.waitForAccess(a);
+				Lib.assertTrue(queue.nextThread() == a);
+			}
+			Lib.assertTrue(scheduler.getPriority(a) == top - 1);
+		}
+		else {
+			Lib.assertTrue(queue.nextThread() == b);
+		}
+
+		// b hogs the CPU until it reaches the bottom level
+		for (int i = 0; i < scheduler.levels; i++) {
+			while (!scheduler.timerInterrupt(b, queue))
+				;
+		}
+		Lib.assertTrue(scheduler.getPriority(b) == 0);
+
+		// waiting threads are moved back to the top by a boost
+		if (scheduler.boostInterval > 0) {
+			queue.waitForAccess(b);
+			KThread c = new KThread().setName("mlfq test c");
+			do {
+				scheduler.timerInterrupt(c, queue);
+			} while (scheduler.numInterrupts % scheduler.boostInterval != 0);
+			Lib.assertTrue(scheduler.getPriority(b) == top);
+			Lib.assertTrue(scheduler.getPriority(a) == top);
+
+			queue.waitForAccess(a);
+			Lib.assertTrue(queue.nextThread() == b);
+			Lib.assertTrue(queue.nextThread() == a);
+		}
+
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> kept as one FIFO queue per level.
+	 */
+	protected class MLFQueue extends ThreadQueue {
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		MLFQueue() {
+			queues = new ArrayDeque[levels];
+			for (int i = 0; i < levels; i++)
+				queues[i] = new ArrayDeque<ThreadState>();
+
+			boosts = numBoosts;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			boost();
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingOn == null);
+			state.boost();
+
+			// only a thread that blocked, or a new one, is put on a queue by
+			// another thread
+			if (thread != KThread.currentThread())
+				state.used = 0;
+
+			state.waitingOn = this;
+			queues[state.level].add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			int level = topLevel();
+			if (level == levels)
+				return null;
+
+			ThreadState next = queues[level].removeFirst();
+			next.waitingOn = null;
+
+			return next.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(topLevel() == levels);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < levels; i++) {
+				for (Iterator<ThreadState> j = queues[i].iterator(); j.hasNext();)
+					System.out.print(j.next().thread + " (" + i + ") ");
+			}
+		}
+
+		/**
+		 * Return the highest level with a waiting thread, or <tt>levels</tt>
+		 * if no threads are waiting.
+		 */
+		int topLevel() {
+			boost();
+
+			int level = 0;
+			while (level < levels && queues[level].isEmpty())
+				level++;
+
+			return level;
+		}
+
+		/**
+		 * Move every waiting thread to the top level, if there has been a
+		 * boost since this queue was last used, keeping the order of the
+		 * threads within each level.
+		 */
+		void boost() {
+			if (boosts == numBoosts)
+				return;
+
+			boosts = numBoosts;
+			for (int i = 1; i < levels; i++) {
+				while (!queues[i].isEmpty()) {
+					ThreadState state = queues[i].removeFirst();
+					state.boost();
+					queues[0].add(state);
+				}
+			}
+		}
+
+		private ArrayDeque<ThreadState>[] queues;
+
+		/** The number of boosts applied to this queue. */
+		private int boosts;
+	}
+
+	/**
+	 * The scheduling state of a thread.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+
+			boosts = numBoosts;
+		}
+
+		/**
+		 * Move the associated thread to the specified level and start a new
+		 * quantum.
+		 *
+		 * @param level the new level.
+		 */
+		public void setLevel(int level) {
+			if (waitingOn != null) {
+				waitingOn.boost();
+				waitingOn.queues[this.level].remove(this);
+			}
+
+			boost();
+			this.level = level;
+			used = 0;
+
+			if (waitingOn != null)
+				waitingOn.queues[level].add(this);
+		}
+
+		/**
+		 * Move the associated thread to the top level, if there has been a
+		 * boost since its level was last looked at.
+		 */
+		void boost() {
+			if (boosts == numBoosts)
+				return;
+
+			boosts = numBoosts;
+			level = 0;
+			used = 0;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The level of the associated thread; 0 is the highest. */
+		protected int level = 0;
+
+		/** The timer interrupts charged to the thread in its quantum. */
+		protected int used = 0;
+
+		/** The queue the thread is waiting on, if any. */
+		protected MLFQueue waitingOn = null;
+
+		/** The number of boosts applied to this thread. */
+		private int boosts;
+	}
+
+	/** The number of levels. */
+	private int levels;
+
+	/** The quantum of each level, in timer interrupts. */
+	private int[] quantum;
+
+	/** The number of timer interrupts between boosts, or 0 for none. */
+	private int boostInterval;
+
+	private long numInterrupts = 0;
+
+	private int numBoosts = 0;
+}
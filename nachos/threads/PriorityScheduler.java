@@ -25,6 +25,18 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ * 
+ * <p>
+ * Each queue keeps one FIFO list per priority level, and a bitmap of the levels
+ * that are not empty, so the highest waiting priority is a single bit scan.
+ * Each thread caches its effective priority, along with a count of the queues
+ * it owns that donate each priority level. When a queue's highest waiting
+ * priority changes, only the owner's counts are adjusted, and the change is
+ * passed on along the chain of owners only as long as it changes an effective
+ * priority. None of this depends on how many threads are waiting, except
+ * that a waiting thread whose effective priority changes is put back among
+ * the threads of its new priority in the order they joined the queue, so that
+ * the one that has waited longest still goes first.
  */
 public class PriorityScheduler extends Scheduler {
 	/**
@@ -97,6 +109,85 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		PriorityScheduler scheduler = new PriorityScheduler();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// threads leave by priority, and in FIFO order within a priority
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		KThread[] threads = new KThread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("priority test " + i);
+			scheduler.setPriority(threads[i], (i % 2 == 0) ? 1 : 5);
+			queue.waitForAccess(threads[i]);
+		}
+
+		Lib.assertTrue(queue.nextThread() == threads[1]);
+		Lib.assertTrue(queue.nextThread() == threads[3]);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+		Lib.assertTrue(queue.nextThread() == threads[2]);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		// priority is donated along a chain of owners, and taken back
+		KThread low = new KThread().setName("low");
+		KThread mid = new KThread().setName("mid");
+		KThread high = new KThread().setName("high");
+		scheduler.setPriority(low, 1);
+		scheduler.setPriority(mid, 3);
+		scheduler.setPriority(high, 6);
+
+		ThreadQueue lowLock = scheduler.newThreadQueue(true);
+		ThreadQueue midLock = scheduler.newThreadQueue(true);
+		lowLock.acquire(low);
+		midLock.acquire(mid);
+
+		lowLock.waitForAccess(high);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 6);
+
+		midLock.waitForAccess(low);
+		Lib.assertTrue(scheduler.getEffectivePriority(mid) == 6);
+
+		scheduler.setPriority(high, 2);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 2);
+		Lib.assertTrue(scheduler.getEffectivePriority(mid) == 3);
+
+		scheduler.setPriority(high, 7);
+		Lib.assertTrue(scheduler.getEffectivePriority(mid) == 7);
+
+		Lib.assertTrue(lowLock.nextThread() == high);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 1);
+		Lib.assertTrue(scheduler.getEffectivePriority(mid) == 3);
+
+		Lib.assertTrue(midLock.nextThread() == low);
+		Lib.assertTrue(scheduler.getEffectivePriority(mid) == 3);
+
+		// a waiter raised by a donation keeps its place among the threads
+		// that joined after it at its new priority
+		ThreadQueue readyQueue = scheduler.newThreadQueue(false);
+		ThreadQueue heldLock = scheduler.newThreadQueue(true);
+		KThread first = new KThread().setName("first");
+		KThread second = new KThread().setName("second");
+		KThread donor = new KThread().setName("donor");
+		scheduler.setPriority(first, 2);
+		scheduler.setPriority(second, 4);
+		scheduler.setPriority(donor, 4);
+
+		readyQueue.waitForAccess(first);
+		readyQueue.waitForAccess(second);
+		heldLock.acquire(first);
+		heldLock.waitForAccess(donor);
+		Lib.assertTrue(scheduler.getEffectivePriority(first) == 4);
+
+		Lib.assertTrue(readyQueue.nextThread() == first);
+		Lib.assertTrue(readyQueue.nextThread() == second);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -145,8 +236,18 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			int oldTop = topPriority();
+			ThreadState next = pickNextThread();
+
+			if (next != null) {
+				remove(next);
+				next.waitingOn = null;
+			}
+
+			setOwner(next, oldTop);
+
+			return (next == null) ? null : next.thread;
 		}
 
 		/**
@@ -156,15 +257,124 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			int top = topPriority();
+			if (top < 0)
+				return null;
+
+			return heads[top];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int p = priorityMaximum; p >= priorityMinimum; p--) {
+				for (ThreadState s = heads[p]; s != null; s = s.nextWaiter)
+					System.out.print(s.thread + " (" + p + ") ");
+			}
+			System.out.println();
 		}
 
+		/**
+		 * Return the highest effective priority of any thread waiting in this
+		 * queue.
+		 * 
+		 * @return the highest waiting priority, or -1 if no thread is waiting.
+		 */
+		protected int topPriority() {
+			return 31 - Integer.numberOfLeadingZeros(occupied);
+		}
+
+		/**
+		 * Make the specified thread the owner of this queue, moving the
+		 * priority this queue donates from the old owner to the new one.
+		 * 
+		 * @param newOwner the new owner, or <tt>null</tt>.
+		 * @param oldTop the priority this queue donated to the old owner.
+		 */
+		void setOwner(ThreadState newOwner, int oldTop) {
+			if (transferPriority) {
+				if (owner != null)
+					owner.donationChanged(oldTop, -1);
+				if (newOwner != null)
+					newOwner.donationChanged(-1, topPriority());
+			}
+
+			owner = newOwner;
+		}
+
+		/**
+		 * Tell the owner of this queue that the priority this queue donates
+		 * may have changed.
+		 * 
+		 * @param oldTop the priority this queue donated before the change.
+		 */
+		void topChanged(int oldTop) {
+			int newTop = topPriority();
+
+			if (transferPriority && owner != null && newTop != oldTop)
+				owner.donationChanged(oldTop, newTop);
+		}
+
+		/**
+		 * Insert a thread into the list for its effective priority, after
+		 * every thread there that joined this queue before it. A thread that
+		 * has just joined goes straight to the end.
+		 */
+		void add(ThreadState state) {
+			int p = state.effectivePriority;
+
+			ThreadState prev = tails[p];
+			while (prev != null && prev.order > state.order)
+				prev = prev.prevWaiter;
+
+			state.prevWaiter = prev;
+			state.nextWaiter = (prev == null) ? heads[p] : prev.nextWaiter;
+			if (prev == null)
+				heads[p] = state;
+			else
+				prev.nextWaiter = state;
+			if (state.nextWaiter == null)
+				tails[p] = state;
+			else
+				state.nextWaiter.prevWaiter = state;
+
+			occupied |= 1 << p;
+		}
+
+		/**
+		 * Unlink a thread from the list for its effective priority.
+		 */
+		void remove(ThreadState state) {
+			int p = state.effectivePriority;
+
+			if (state.prevWaiter == null)
+				heads[p] = state.nextWaiter;
+			else
+				state.prevWaiter.nextWaiter = state.nextWaiter;
+			if (state.nextWaiter == null)
+				tails[p] = state.prevWaiter;
+			else
+				state.nextWaiter.prevWaiter = state.prevWaiter;
+
+			state.prevWaiter = state.nextWaiter = null;
+
+			if (heads[p] == null)
+				occupied &= ~(1 << p);
+		}
+
+		/** The first and last waiting thread at each priority. */
+		private ThreadState[] heads = new ThreadState[priorityMaximum + 1];
+
+		private ThreadState[] tails = new ThreadState[priorityMaximum + 1];
+
+		/** A bit for each priority that has waiting threads. */
+		private int occupied = 0;
+
+		/** The thread that last acquired this queue, or <tt>null</tt>. */
+		private ThreadState owner = null;
+
+		private long numJoins = 0;
+
 		/**
 		 * <tt>true</tt> if this queue should transfer priority from waiting
 		 * threads to the owning thread.
@@ -207,8 +417,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +431,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +447,14 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			int oldTop = waitQueue.topPriority();
+
+			waitingOn = waitQueue;
+			order = waitQueue.numJoins++;
+			waitQueue.add(this);
+			waitQueue.topChanged(oldTop);
 		}
 
 		/**
@@ -252,7 +468,50 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			waitQueue.setOwner(this, waitQueue.topPriority());
+		}
+
+		/**
+		 * Called when the priority donated by a queue owned by the associated
+		 * thread changes.
+		 * 
+		 * @param oldPriority the priority that was donated, or -1 if none.
+		 * @param newPriority the priority that is now donated, or -1 if none.
+		 */
+		void donationChanged(int oldPriority, int newPriority) {
+			if (oldPriority >= 0 && --donations[oldPriority] == 0)
+				donated &= ~(1 << oldPriority);
+			if (newPriority >= 0 && donations[newPriority]++ == 0)
+				donated |= 1 << newPriority;
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority from the priority and the
+		 * donations, and if it changed, move the associated thread to the
+		 * right list of the queue it is waiting on, which may change what
+		 * that queue donates in turn.
+		 */
+		private void updateEffectivePriority() {
+			int effective = Math.max(priority,
+					31 - Integer.numberOfLeadingZeros(donated));
+
+			if (effective == effectivePriority)
+				return;
+
+			if (waitingOn == null) {
+				effectivePriority = effective;
+				return;
+			}
+
+			PriorityQueue queue = waitingOn;
+			int oldTop = queue.topPriority();
+
+			queue.remove(this);
+			effectivePriority = effective;
+			queue.add(this);
+			queue.topChanged(oldTop);
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +519,26 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitingOn = null;
+
+		/** The neighbours of the associated thread in <tt>waitingOn</tt>. */
+		ThreadState prevWaiter, nextWaiter;
+
+		/** The order in which the thread joined <tt>waitingOn</tt>. */
+		long order;
+
+		/**
+		 * The number of owned queues whose highest waiting priority is each
+		 * priority.
+		 */
+		private int[] donations = new int[priorityMaximum + 1];
+
+		/** A bit for each priority with a nonzero count in donations. */
+		private int donated = 0;
 	}
 }
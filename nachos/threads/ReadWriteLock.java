@@ -0,0 +1,317 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> can be held either by any number of readers at
+ * once, or by a single writer:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds or is waiting for the
+ * lock, then hold it for reading.
+ * <li><tt>acquireWrite()</tt>: wait until nobody holds the lock, then hold it
+ * for writing.
+ * <li><tt>releaseRead()</tt> and <tt>releaseWrite()</tt>: give it up again.
+ * </ul>
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, new readers wait behind it,
+ * so a stream of readers cannot starve writers. Readers are batched: when a
+ * writer releases the lock, every reader waiting at that moment is let in
+ * together, ahead of the writers still waiting, so writers cannot starve
+ * readers either.
+ *
+ * <p>
+ * The lock is built from a <tt>Lock</tt> and two <tt>Condition2</tt>s. If
+ * priority donation is asked for, writers also take turns through a second
+ * <tt>Lock</tt>, held for as long as they write or wait for readers to leave,
+ * so that waiting writers donate their priority through its
+ * <tt>ThreadQueue</tt> to the writer ahead of them. Readers do not take part in
+ * donation, since a <tt>ThreadQueue</tt> has only one owner.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new read-write lock, without priority donation. The lock will
+	 * initially be free.
+	 */
+	public ReadWriteLock() {
+		this(false);
+	}
+
+	/**
+	 * Allocate a new read-write lock. The lock will initially be free.
+	 *
+	 * @param transferPriority <tt>true</tt> if waiting writers should donate
+	 * priority to the writer ahead of them.
+	 */
+	public ReadWriteLock(boolean transferPriority) {
+		lock = new Lock();
+		readable = new Condition2(lock);
+		writable = new Condition2(lock);
+
+		if (transferPriority)
+			writerLock = new Lock();
+	}
+
+	/**
+	 * Acquire this lock for reading, waiting while a writer holds it or is
+	 * waiting for it.
+	 */
+	public void acquireRead() {
+		lock.acquire();
+
+		if (writer != null || numWaitingWriters > 0) {
+			long batch = numBatches;
+			numWaitingReaders++;
+			while (batch > lastAdmittedBatch)
+				readable.sleep();
+			numPendingReaders--;
+		}
+		numReaders++;
+
+		lock.release();
+	}
+
+	/**
+	 * Release this lock after reading, letting a waiting writer in if this was
+	 * the last reader.
+	 */
+	public void releaseRead() {
+		lock.acquire();
+
+		Lib.assertTrue(numReaders > 0);
+		numReaders--;
+		if (numReaders == 0 && numPendingReaders == 0 && numWaitingWriters > 0)
+			writable.wake();
+
+		lock.release();
+	}
+
+	/**
+	 * Acquire this lock for writing, waiting until no other thread holds it.
+	 * The current thread must not already hold this lock.
+	 */
+	public void acquireWrite() {
+		KThread thread = KThread.currentThread();
+		Lib.assertTrue(writer != thread);
+
+		lock.acquire();
+		numWaitingWriters++;
+
+		if (writerLock != null) {
+			lock.release();
+			writerLock.acquire();
+			lock.acquire();
+		}
+
+		while (writer != null || numReaders > 0 || numPendingReaders > 0)
+			writable.sleep();
+		numWaitingWriters--;
+		writer = thread;
+
+		lock.release();
+	}
+
+	/**
+	 * Release this lock after writing. If any readers are waiting, all of them
+	 * are let in; otherwise a waiting writer is.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		lock.acquire();
+
+		writer = null;
+		if (numWaitingReaders > 0) {
+			numPendingReaders += numWaitingReaders;
+			numWaitingReaders = 0;
+			lastAdmittedBatch = numBatches++;
+			readable.wakeAll();
+		}
+		else if (numWaitingWriters > 0) {
+			writable.wake();
+		}
+
+		lock.release();
+
+		if (writerLock != null)
+			writerLock.release();
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 *
+	 * @return true if the current thread holds this lock for writing.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return writer == KThread.currentThread();
+	}
+
+	private static class Worker implements Runnable {
+		Worker(ReadWriteLock rwLock, boolean writing) {
+			this.rwLock = rwLock;
+			this.writing = writing;
+		}
+
+		public void run() {
+			for (int i = 0; i < 5; i++) {
+				if (writing) {
+					rwLock.acquireWrite();
+					Lib.assertTrue(numWriting == 0 && numReading == 0);
+					numWriting++;
+				}
+				else {
+					rwLock.acquireRead();
+					Lib.assertTrue(numWriting == 0);
+					numReading++;
+					maxReading = Math.max(maxReading, numReading);
+				}
+
+				KThread.yield();
+
+				if (writing) {
+					numWriting--;
+					rwLock.releaseWrite();
+				}
+				else {
+					numReading--;
+					rwLock.releaseRead();
+				}
+				KThread.yield();
+			}
+		}
+
+		private ReadWriteLock rwLock;
+
+		private boolean writing;
+	}
+
+	private static int numReading = 0, numWriting = 0, maxReading = 0;
+
+	private static String order = "";
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		for (int donate = 0; donate < 2; donate++) {
+			final ReadWriteLock rwLock = new ReadWriteLock(donate == 1);
+
+			// readers share the lock and writers exclude everyone
+			KThread[] threads = new KThread[5];
+			for (int i = 0; i < threads.length; i++) {
+				threads[i] = new KThread(new Worker(rwLock, i >= 3))
+						.setName((i < 3 ? "reader " : "writer ") + i);
+				threads[i].fork();
+			}
+			for (int i = 0; i < threads.length; i++)
+				threads[i].join();
+			Lib.assertTrue(maxReading > 1);
+
+			// a reader that arrives after a writer waits behind it
+			order = "";
+			rwLock.acquireRead();
+			KThread writer = new KThread(new Runnable() {
+				public void run() {
+					rwLock.acquireWrite();
+					order += "w";
+					rwLock.releaseWrite();
+				}
+			}).setName("writer");
+			KThread reader = new KThread(new Runnable() {
+				public void run() {
+					rwLock.acquireRead();
+					order += "r";
+					rwLock.releaseRead();
+				}
+			}).setName("reader");
+			writer.fork();
+			KThread.yield();
+			reader.fork();
+			KThread.yield();
+			Lib.assertTrue(order.equals(""));
+			rwLock.releaseRead();
+			writer.join();
+			reader.join();
+			Lib.assertTrue(order.equals("wr"));
+		}
+	}
+
+	/**
+	 * Measure how read throughput scales with the number of readers, when
+	 * each read holds the lock across a wait, such as for a disk. Compare with
+	 * a plain <tt>Lock</tt>, which lets one reader in at a time.
+	 */
+	public static void benchmark() {
+		final int numReads = 20;
+		final long readTicks = 1000;
+
+		for (int exclusive = 1; exclusive >= 0; exclusive--) {
+			final Lock mutex = new Lock();
+			final ReadWriteLock rwLock = new ReadWriteLock();
+			final boolean useMutex = (exclusive == 1);
+
+			for (int numThreads = 1; numThreads <= 8; numThreads *= 2) {
+				KThread[] readers = new KThread[numThreads];
+				for (int i = 0; i < numThreads; i++) {
+					readers[i] = new KThread(new Runnable() {
+						public void run() {
+							for (int j = 0; j < numReads; j++) {
+								if (useMutex)
+									mutex.acquire();
+								else
+									rwLock.acquireRead();
+
+								ThreadedKernel.alarm.waitUntil(readTicks);
+
+								if (useMutex)
+									mutex.release();
+								else
+									rwLock.releaseRead();
+							}
+						}
+					}).setName("reader " + i);
+				}
+
+				long start = Machine.timer().getTime();
+				for (int i = 0; i < numThreads; i++)
+					readers[i].fork();
+				for (int i = 0; i < numThreads; i++)
+					readers[i].join();
+				long ticks = Machine.timer().getTime() - start;
+
+				System.out.println((useMutex ? "Lock" : "ReadWriteLock") + ": "
+						+ numThreads + " readers, "
+						+ (numThreads * numReads * 100000L / ticks)
+						+ " reads per 100000 ticks");
+			}
+		}
+	}
+
+	private Lock lock;
+
+	/** Signalled when a batch of waiting readers is let in. */
+	private Condition2 readable;
+
+	/** Signalled when a writer may be able to get in. */
+	private Condition2 writable;
+
+	/** Held by the writer, if priority donation was asked for. */
+	private Lock writerLock = null;
+
+	private KThread writer = null;
+
+	private int numReaders = 0;
+
+	/** Readers let in by a writer that have not run yet. */
+	private int numPendingReaders = 0;
+
+	private int numWaitingReaders = 0;
+
+	private int numWaitingWriters = 0;
+
+	/** The number of batches of waiting readers started so far. */
+	private long numBatches = 0;
+
+	private long lastAdmittedBatch = -1;
+}
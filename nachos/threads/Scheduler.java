@@ -151,4 +151,30 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called by <tt>KThread.run()</tt> when the CPU is about to be switched
+	 * from <tt>previous</tt> to <tt>next</tt>. The default does nothing.
+	 * 
+	 * @param previous the thread that has been running.
+	 * @param next the thread that is about to run.
+	 */
+	public void switchThreads(KThread previous, KThread next) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Called by the timer interrupt handler while <tt>thread</tt> is running,
+	 * to decide whether its quantum is over. The default is to preempt the
+	 * running thread on every timer interrupt, so that every thread gets the
+	 * same quantum.
+	 * 
+	 * @param thread the running thread.
+	 * @param readyQueue the queue of threads that are ready to run.
+	 * @return <tt>true</tt> if the running thread should yield.
+	 */
+	public boolean timerInterrupt(KThread thread, ThreadQueue readyQueue) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return true;
+	}
 }
@@ -38,11 +38,16 @@ public class Semaphore {
 		boolean intStatus = Machine.interrupt().disable();
 
 		if (value == 0) {
+			long waitStart = Machine.timer().getTime();
 			waitQueue.waitForAccess(KThread.currentThread());
 			KThread.sleep();
+			if (profile != null)
+				profile.acquiredAfterWait(Machine.timer().getTime() - waitStart);
 		}
 		else {
 			value--;
+			if (profile != null)
+				profile.acquired();
 		}
 
 		Machine.interrupt().restore(intStatus);
@@ -106,4 +111,7 @@ public class Semaphore {
 
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(false);
+
+	/** Contention statistics, if they are being kept. */
+	private LockProfile profile = LockProfile.forNew("Semaphore");
 }
@@ -0,0 +1,394 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares the CPU in proportion to tickets, deterministically.
+ *
+ * <p>
+ * A stride scheduler associates a number of tickets with each thread, like a
+ * lottery scheduler. Each thread has a <i>stride</i>, inversely proportional to
+ * its tickets, and a <i>pass</i>. The next thread to be dequeued is always the
+ * waiting thread with the lowest pass, and dequeuing a thread advances its pass
+ * by its stride. Over any interval, a thread is therefore dequeued within one
+ * of its fair share of times, instead of only on average.
+ *
+ * <p>
+ * Each queue also keeps a global pass, which advances at the rate that every
+ * waiting thread's pass advances together. When a thread leaves a queue, it
+ * remembers how far its pass was ahead of the global pass, and when it joins a
+ * queue again its pass is placed that far ahead of that queue's global pass.
+ * Threads that sleep for a long time thus neither lose their place nor build
+ * up credit, and changing a thread's tickets rescales how far ahead it is.
+ *
+ * <p>
+ * Tickets are not transferred through locks or joins.
+ */
+public class StrideScheduler extends Scheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param transferPriority ignored; stride queues never transfer tickets.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).tickets;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).tickets;
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= ticketsMinimum && priority <= ticketsMaximum);
+
+		getThreadState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == ticketsMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == ticketsMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		StrideScheduler scheduler = new StrideScheduler();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// three threads holding 3, 2 and 1 tickets share 600 turns exactly
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		KThread[] threads = new KThread[3];
+		int[] turns = new int[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("stride test " + i);
+			scheduler.setPriority(threads[i], threads.length - i);
+			queue.waitForAccess(threads[i]);
+		}
+
+		for (int i = 0; i < 600; i++) {
+			KThread thread = queue.nextThread();
+			for (int j = 0; j < threads.length; j++) {
+				if (threads[j] == thread)
+					turns[j]++;
+			}
+			queue.waitForAccess(thread);
+		}
+
+		Lib.assertTrue(turns[0] == 300 && turns[1] == 200 && turns[2] == 100);
+
+		// after a change of tickets, the new shares take over at once
+		scheduler.setPriority(threads[2], 3);
+		turns = new int[threads.length];
+		for (int i = 0; i < 800; i++) {
+			KThread thread = queue.nextThread();
+			for (int j = 0; j < threads.length; j++) {
+				if (threads[j] == thread)
+					turns[j]++;
+			}
+			queue.waitForAccess(thread);
+		}
+
+		for (int j = 0; j < threads.length; j++)
+			Lib.assertTrue(Math.abs(turns[j] - 800 * (j == 1 ? 2 : 3) / 8) <= 1);
+
+		for (int i = 0; i < threads.length; i++)
+			queue.nextThread();
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int ticketsDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int ticketsMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int ticketsMaximum = 1 << 20;
+
+	/**
+	 * The stride of a thread holding a single ticket. Large enough that the
+	 * global stride of a queue stays exact for any realistic ticket total.
+	 */
+	private static final long stride1 = 1L << 40;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> kept as a binary min-heap of threads, ordered by
+	 * pass and, among equal passes, by the order they joined.
+	 */
+	protected class StrideQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingOn == null);
+
+			state.waitingOn = this;
+			state.pass = globalPass + state.remain;
+			state.order = numJoins++;
+			totalTickets += state.tickets;
+
+			if (size == heap.length) {
+				ThreadState[] newHeap = new ThreadState[2 * heap.length];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
+			}
+
+			heap[size] = state;
+			state.index = size++;
+			siftUp(state.index);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (size == 0)
+				return null;
+
+			// a turn passes for every waiting thread
+			globalPass += stride1 / totalTickets;
+
+			ThreadState next = heap[0];
+			remove(next);
+
+			next.pass += next.stride;
+			next.remain = next.pass - globalPass;
+
+			return next.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(size == 0);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + " (" + heap[i].pass + ") ");
+		}
+
+		/**
+		 * Take a waiting thread out of this queue.
+		 */
+		void remove(ThreadState state) {
+			int index = state.index;
+			ThreadState last = heap[--size];
+			heap[size] = null;
+
+			if (last != state) {
+				heap[index] = last;
+				last.index = index;
+				siftDown(index);
+				siftUp(last.index);
+			}
+
+			totalTickets -= state.tickets;
+			state.waitingOn = null;
+		}
+
+		/**
+		 * Change the tickets of a waiting thread, whose pass has already been
+		 * rescaled.
+		 */
+		void reschedule(ThreadState state, int oldTickets) {
+			totalTickets += state.tickets - oldTickets;
+
+			siftDown(state.index);
+			siftUp(state.index);
+		}
+
+		private boolean before(ThreadState a, ThreadState b) {
+			return a.pass < b.pass || (a.pass == b.pass && a.order < b.order);
+		}
+
+		private void siftUp(int index) {
+			ThreadState state = heap[index];
+
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				heap[index] = heap[parent];
+				heap[index].index = index;
+				index = parent;
+			}
+
+			heap[index] = state;
+			state.index = index;
+		}
+
+		private void siftDown(int index) {
+			ThreadState state = heap[index];
+
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], state))
+					break;
+
+				heap[index] = heap[child];
+				heap[index].index = index;
+				index = child;
+			}
+
+			heap[index] = state;
+			state.index = index;
+		}
+
+		private ThreadState[] heap = new ThreadState[8];
+
+		private int size = 0;
+
+		/** The tickets of all waiting threads. */
+		private long totalTickets = 0;
+
+		/** The pass of a virtual thread holding all the tickets in this queue. */
+		private long globalPass = 0;
+
+		private long numJoins = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+
+			tickets = ticketsDefault;
+			stride = stride1 / tickets;
+			remain = stride;
+		}
+
+		/**
+		 * Set the tickets of the associated thread, scaling how far its pass
+		 * is ahead of the global pass by the change in stride.
+		 *
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(int tickets) {
+			if (this.tickets == tickets)
+				return;
+
+			int oldTickets = this.tickets;
+			long newStride = stride1 / tickets;
+
+			if (waitingOn != null)
+				remain = pass - waitingOn.globalPass;
+
+			// remain * newStride / stride, without overflowing
+			remain = (long) ((double) remain * newStride / stride);
+
+			this.tickets = tickets;
+			stride = newStride;
+
+			if (waitingOn != null) {
+				pass = waitingOn.globalPass + remain;
+				waitingOn.reschedule(this, oldTickets);
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets of the associated thread. */
+		protected int tickets;
+
+		/** The distance the pass advances each time the thread is dequeued. */
+		protected long stride;
+
+		/** The pass of the thread, while it is waiting. */
+		protected long pass;
+
+		/** How far the pass was ahead of the global pass when it left. */
+		protected long remain;
+
+		/** The queue the thread is waiting on, if any. */
+		protected StrideQueue waitingOn = null;
+
+		/** The position of the thread in the heap of <tt>waitingOn</tt>. */
+		int index;
+
+		/** The order in which the thread joined <tt>waitingOn</tt>. */
+		long order;
+	}
+}
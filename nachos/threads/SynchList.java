@@ -1,55 +1,179 @@
 package nachos.threads;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
- * A synchronized queue.
+ * A synchronized queue, kept in a ring buffer. A queue may be bounded, in
+ * which case threads adding to a full queue wait for room.
  */
 public class SynchList {
 	/**
-	 * Allocate a new synchronized queue.
+	 * Allocate a new synchronized queue with no bound on its size.
 	 */
 	public SynchList() {
-		list = new LinkedList<Object>();
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Allocate a new synchronized queue that holds at most <i>capacity</i>
+	 * objects.
+	 *
+	 * @param capacity the most objects the queue can hold.
+	 */
+	public SynchList(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		this.capacity = capacity;
+		items = new Object[Math.min(capacity, 16)];
 		lock = new Lock();
 		listEmpty = new Condition(lock);
+		listFull = new Condition(lock);
 	}
 
 	/**
-	 * Add the specified object to the end of the queue. If another thread is
-	 * waiting in <tt>removeFirst()</tt>, it is woken up.
-	 * 
+	 * Add the specified object to the end of the queue, blocking until there is
+	 * room if necessary. If another thread is waiting in <tt>removeFirst()</tt>,
+	 * it is woken up.
+	 *
 	 * @param o the object to add. Must not be <tt>null</tt>.
 	 */
 	public void add(Object o) {
 		Lib.assertTrue(o != null);
 
 		lock.acquire();
-		list.add(o);
+		while (count == capacity)
+			listFull.sleep();
+		append(o);
 		listEmpty.wake();
 		lock.release();
 	}
 
+	/**
+	 * Add the specified object to the end of the queue if there is room,
+	 * without blocking.
+	 *
+	 * @param o the object to add. Must not be <tt>null</tt>.
+	 * @return <tt>true</tt> if the object was added, or <tt>false</tt> if the
+	 * queue was full.
+	 */
+	public boolean offer(Object o) {
+		Lib.assertTrue(o != null);
+
+		lock.acquire();
+		boolean added = count < capacity;
+		if (added) {
+			append(o);
+			listEmpty.wake();
+		}
+		lock.release();
+
+		return added;
+	}
+
+	/**
+	 * Add all of the specified objects to the end of the queue, in order,
+	 * blocking whenever the queue is full. Objects that fit are added with a
+	 * single acquire of the queue's lock; if the queue fills up, the objects
+	 * added so far are handed over before waiting for room, and objects added
+	 * by other threads meanwhile may be interleaved with the rest.
+	 *
+	 * @param c the objects to add. None may be <tt>null</tt>.
+	 */
+	public void addAll(Collection<?> c) {
+		Iterator<?> i = c.iterator();
+
+		lock.acquire();
+		while (i.hasNext()) {
+			while (count == capacity)
+				listFull.sleep();
+
+			while (count < capacity && i.hasNext()) {
+				Object o = i.next();
+				Lib.assertTrue(o != null);
+				append(o);
+			}
+			listEmpty.wakeAll();
+		}
+		lock.release();
+	}
+
 	/**
 	 * Remove an object from the front of the queue, blocking until the queue is
 	 * non-empty if necessary.
-	 * 
+	 *
 	 * @return the element removed from the front of the queue.
 	 */
 	public Object removeFirst() {
 		Object o;
 
 		lock.acquire();
-		while (list.isEmpty())
+		while (count == 0)
 			listEmpty.sleep();
-		o = list.removeFirst();
+		o = take();
+		listFull.wake();
 		lock.release();
 
 		return o;
 	}
 
+	/**
+	 * Remove up to <i>max</i> objects from the front of the queue, blocking
+	 * until the queue is non-empty if necessary, with a single acquire of the
+	 * queue's lock.
+	 *
+	 * @param max the most objects to remove.
+	 * @return the objects removed, in the order they were in the queue.
+	 */
+	public Object[] drainTo(int max) {
+		Lib.assertTrue(max > 0);
+
+		lock.acquire();
+		while (count == 0)
+			listEmpty.sleep();
+
+		Object[] drained = new Object[Math.min(max, count)];
+		for (int i = 0; i < drained.length; i++)
+			drained[i] = take();
+		listFull.wakeAll();
+		lock.release();
+
+		return drained;
+	}
+
+	/**
+	 * Add an object to the end of the ring buffer, growing it if it is full
+	 * but the queue is not. The lock must be held.
+	 */
+	private void append(Object o) {
+		if (count == items.length) {
+			Object[] newItems = new Object[(int) Math.min(2L * items.length,
+					capacity)];
+			for (int i = 0; i < count; i++)
+				newItems[i] = items[(head + i) % items.length];
+			items = newItems;
+			head = 0;
+		}
+
+		items[(head + count) % items.length] = o;
+		count++;
+	}
+
+	/**
+	 * Take the object at the front of the ring buffer. The lock must be held.
+	 */
+	private Object take() {
+		Object o = items[head];
+		items[head] = null;
+		head = (head + 1) % items.length;
+		count--;
+
+		return o;
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(SynchList ping, SynchList pong) {
 			this.ping = ping;
@@ -80,11 +204,48 @@ public class SynchList {
 			ping.add(o);
 			Lib.assertTrue(pong.removeFirst() == o);
 		}
+
+		// a producer adding a burst to a small queue is held back until the
+		// consumer drains it, and nothing is lost or reordered
+		final SynchList bounded = new SynchList(3);
+		final ArrayList<Integer> burst = new ArrayList<Integer>();
+		for (int i = 0; i < 20; i++)
+			burst.add(Integer.valueOf(i));
+
+		KThread producer = new KThread(new Runnable() {
+			public void run() {
+				bounded.addAll(burst);
+			}
+		}).setName("producer");
+		producer.fork();
+
+		int next = 0;
+		while (next < burst.size()) {
+			Object[] drained = bounded.drainTo(2);
+			Lib.assertTrue(drained.length >= 1 && drained.length <= 2);
+			for (int i = 0; i < drained.length; i++)
+				Lib.assertTrue(drained[i] == burst.get(next++));
+		}
+		producer.join();
+
+		for (int i = 0; i < 3; i++)
+			Lib.assertTrue(bounded.offer(burst.get(i)));
+		Lib.assertTrue(!bounded.offer(burst.get(3)));
+		Lib.assertTrue(bounded.drainTo(10).length == 3);
 	}
 
-	private LinkedList<Object> list;
+	/** The objects in the queue, starting at <tt>head</tt>. */
+	private Object[] items;
+
+	private int head = 0;
+
+	private int count = 0;
+
+	private int capacity;
 
 	private Lock lock;
 
 	private Condition listEmpty;
+
+	private Condition listFull;
 }
@@ -49,13 +49,38 @@ public class ThreadedKernel extends Kernel {
 		KThread.selfTest();
 		Semaphore.selfTest();
 		SynchList.selfTest();
+		ReadWriteLock.selfTest();
         Alarm.selfTest();
         Condition2.selfTest();
         Rendezvous.selfTest();
         Future.selfTest();
+		TimingWheel.selfTest();
+		PriorityScheduler.selfTest();
+		LotteryScheduler.selfTest();
+		StrideScheduler.selfTest();
+		MLFQScheduler.selfTest();
+		CFSScheduler.selfTest();
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
+
+		if (Config.getBoolean("ThreadedKernel.benchmark", false))
+			benchmark();
+	}
+
+	/**
+	 * Measure the performance of the kernel's data structures. Only run when
+	 * <tt>ThreadedKernel.benchmark</tt> is set in the configuration file, since
+	 * the results vary from run to run.
+	 */
+	public void benchmark() {
+		TimingWheel.benchmark();
+		Alarm.benchmark();
+		KThread.benchmark();
+		ReadWriteLock.benchmark();
+		Future.benchmark();
+		LotteryScheduler.benchmark();
+		CFSScheduler.benchmark();
 	}
 
 	/**
@@ -69,6 +94,7 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		LockProfile.print();
 		Machine.halt();
 	}
 
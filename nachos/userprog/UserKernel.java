@@ -38,6 +38,9 @@ public class UserKernel extends ThreadedKernel {
         emptyPPN = new LinkedList<Integer>();
         for(int i=0; i<numPhysPages; ++i)
             emptyPPN.add(i);
+        ppnRefs = new int[numPhysPages];
+        textPages = new HashMap<String, Integer>();
+        textKeys = new String[numPhysPages];
 	}
 
 	/**
@@ -46,6 +49,8 @@ public class UserKernel extends ThreadedKernel {
 	public void selfTest() {
 		super.selfTest();
 
+        sharedPageTest();
+
 		System.out.println("Testing the console device. Typed characters");
 		System.out.println("will be echoed until q is typed.");
 
@@ -59,6 +64,48 @@ public class UserKernel extends ThreadedKernel {
 		System.out.println("");
 	}
 
+	/**
+	 * Measure the performance of the kernel's data structures and of the
+	 * processor's instruction translation.
+	 */
+	public void benchmark() {
+		super.benchmark();
+		Machine.processor().benchmark();
+	}
+
+	/**
+	 * Run a physical page through the reference counting that fork() relies
+	 * on: share it with a child, copy it on the child's first write, and
+	 * release both pages again when the processes exit. The free page count
+	 * must end where it started.
+	 */
+	private static void sharedPageTest() {
+        System.out.println("Shared page Test:");
+        int free = getEmptyPPN();
+
+        int parent = getPPN();
+        Lib.assertTrue(!isSharedPPN(parent));
+        sharePPN(parent);
+        Lib.assertTrue(isSharedPPN(parent));
+        Lib.assertTrue(getEmptyPPN() == free-1);
+
+        // the child writes first, and gets its own copy
+        int child = getPPN();
+        releasePPN(parent);
+        Lib.assertTrue(!isSharedPPN(parent) && !isSharedPPN(child));
+        Lib.assertTrue(getEmptyPPN() == free-2);
+
+        // a page shared again stays allocated until its last reference goes
+        sharePPN(child);
+        releasePPN(child);
+        Lib.assertTrue(getEmptyPPN() == free-2);
+
+        releasePPN(child);
+        releasePPN(parent);
+        Lib.assertTrue(getEmptyPPN() == free);
+        System.out.println("Shared page Test end.");
+	}
+
 	/**
 	 * Returns the current process.
 	 * 
@@ -129,16 +176,108 @@ public class UserKernel extends ThreadedKernel {
     public static Integer getPPN(){
         lock.acquire();
         Integer r = emptyPPN.poll();
+        if(r != null)
+            ppnRefs[r] = 1;
         lock.release();
         return r;
     }
 
+    /**
+     * Drop a reference to a physical page, freeing it once no page table
+     * entry refers to it any more.
+     */
     public static void releasePPN(int ppn){
         lock.acquire();
-        emptyPPN.add(ppn);
+        Lib.assertTrue(ppnRefs[ppn] > 0);
+        ppnRefs[ppn] -= 1;
+        if(ppnRefs[ppn] == 0){
+            forgetTextPage(ppn);
+            emptyPPN.add(ppn);
+        }
+        lock.release();
+    }
+
+    /**
+     * Add a reference to a physical page, for a page table entry that shares
+     * it with the entries already referring to it.
+     */
+    public static void sharePPN(int ppn){
+        lock.acquire();
+        Lib.assertTrue(ppnRefs[ppn] > 0);
+        ppnRefs[ppn] += 1;
+        lock.release();
+    }
+
+    /**
+     * Look up a read-only page of an executable in the text page cache, and
+     * add a reference to it if it is there.
+     *
+     * @param key the page, as named by <tt>UserProcess.textPageKey()</tt>.
+     * @return the physical page holding it, or <tt>null</tt> if none does.
+     */
+    public static Integer getTextPage(String key){
+        lock.acquire();
+        Integer r = textPages.get(key);
+        if(r != null)
+            ppnRefs[r] += 1;
+        lock.release();
+        return r;
+    }
+
+    /**
+     * Offer a physical page, just loaded with a read-only page of an
+     * executable, to the text page cache, so that other processes running the
+     * same executable can share it. It stays in the cache for as long as some
+     * page table entry refers to it.
+     *
+     * @param key the page, as named by <tt>UserProcess.textPageKey()</tt>.
+     * @param ppn the physical page holding it.
+     */
+    public static void addTextPage(String key, int ppn){
+        lock.acquire();
+        if(!textPages.containsKey(key)){
+            textPages.put(key, ppn);
+            textKeys[ppn] = key;
+        }
         lock.release();
     }
 
+    /**
+     * Drop the reference of a page table entry that is being evicted from a
+     * physical page. The lock must be held.
+     *
+     * @return <tt>true</tt> if other entries still refer to the page, so that
+     * it cannot be reused; <tt>false</tt> if the page now belongs to the
+     * caller.
+     */
+    protected static boolean dropSharedPPN(int ppn){
+        Lib.assertTrue(lock.isHeldByCurrentThread());
+        if(ppnRefs[ppn] > 1){
+            ppnRefs[ppn] -= 1;
+            return true;
+        }
+        forgetTextPage(ppn);
+        return false;
+    }
+
+    /** Take a physical page out of the text page cache, if it is in it. */
+    private static void forgetTextPage(int ppn){
+        if(textKeys[ppn] != null){
+            textPages.remove(textKeys[ppn]);
+            textKeys[ppn] = null;
+        }
+    }
+
+    /**
+     * Return whether more than one page table entry refers to a physical page.
+     */
+    public static boolean isSharedPPN(int ppn){
+        lock.acquire();
+        boolean r = ppnRefs[ppn] > 1;
+        lock.release();
+        return r;
+    }
+
     public static int getEmptyPPN(){
         lock.acquire();
         int r = emptyPPN.size();
@@ -218,6 +357,15 @@ public class UserKernel extends ThreadedKernel {
 
     private static LinkedList<Integer> emptyPPN;
 
+    /** The number of page table entries referring to each physical page. */
+    private static int[] ppnRefs;
+
+    /** The physical pages holding read-only pages of executables. */
+    private static HashMap<String, Integer> textPages;
+
+    /** The key in <tt>textPages</tt> of each physical page, if any. */
+    private static String[] textKeys;
+
 	private static final int maxPipes = 16;
 
     private static HashMap<String, KernelPipe> pipeMap;
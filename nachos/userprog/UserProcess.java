@@ -91,7 +91,7 @@ public class UserProcess {
         Lib.debug(dbgProcess, "before clean, OpenFiles:"+UserKernel.fileSystem.getOpenCount());
         for(OpenFile f : fileTable)
             if(f != null)
-                f.close();
+                closeFile(f);
         if(coff != null)
             coff.close();
         Lib.debug(dbgProcess, "after clean, OpenFiles:"+UserKernel.fileSystem.getOpenCount());
@@ -253,7 +253,7 @@ public class UserProcess {
             Lib.debug(dbgProcess, "Access invalid VPN:"+vpn);
 			return -1;
         }
-        if (write && pageTable[vpn].readOnly){
+        if (write && pageTable[vpn].readOnly && !copyOnWrite(vpn)){
             Lib.debug(dbgProcess, "RO VPN:"+vpn);
 			return -1;
         }
@@ -263,6 +263,136 @@ public class UserProcess {
         return pageTable[vpn].ppn*pageSize + vaOffset;
     }
 
+	/**
+	 * Return the physical address of a byte of virtual memory, and keep its
+	 * page in place until <tt>unpinVirtualMemory()</tt> is called, so that the
+	 * kernel can transfer data to or from it directly.
+	 * 
+	 * @param vaddr the virtual address.
+	 * @param write <tt>true</tt> if the page will be written.
+	 * @return the physical address, or -1 if the page cannot be accessed.
+	 */
+	protected int pinVirtualMemory(int vaddr, boolean write) {
+		return translate(vaddr, write);
+	}
+
+	/**
+	 * Release a page pinned by <tt>pinVirtualMemory()</tt>.
+	 * 
+	 * @param vaddr a virtual address in the page.
+	 */
+	protected void unpinVirtualMemory(int vaddr) {
+	}
+
+	/**
+	 * Transfer data between a file and this process's virtual memory, passing
+	 * the file slices of physical memory so that the data is not copied
+	 * through a kernel buffer. Same as
+	 * <tt>transferFile(file, new int[] {vaddr}, new int[] {count}, toMemory)</tt>.
+	 */
+	private int transferFile(OpenFile file, int vaddr, int count, boolean toMemory) {
+        return transferFile(file, new int[] {vaddr}, new int[] {count}, toMemory);
+	}
+
+	/**
+	 * Transfer data between a file and a list of buffers in this process's
+	 * virtual memory, in order, passing the file slices of physical memory so
+	 * that the data is not copied through a kernel buffer. Each call to the
+	 * file covers a run of pages that are contiguous in physical memory,
+	 * pinned for the duration of the call; a run carries on into the next
+	 * buffer if that buffer starts where the run ends in physical memory.
+	 * 
+	 * @param file the file to transfer data with.
+	 * @param vaddrs the first byte of virtual memory of each buffer.
+	 * @param counts the number of bytes to transfer to or from each buffer.
+	 * @param toMemory <tt>true</tt> to read from the file into memory, or
+	 * <tt>false</tt> to write from memory to the file.
+	 * @return the number of bytes transferred, or -1 if an error occurred. A
+	 * read stops early at the end of the file, but a write that falls short is
+	 * an error.
+	 */
+	private int transferFile(OpenFile file, int[] vaddrs, int[] counts, boolean toMemory) {
+        byte[] memory = Machine.processor().getMemory();
+        int[] pinned = new int[maxPinnedPages];
+        int[] pinnedAddrs = new int[maxPinnedPages];
+        int amount = 0;
+        int seg = 0, done = 0;
+        while(true){
+            while(seg < vaddrs.length && done == counts[seg]){
+                seg++;
+                done = 0;
+            }
+            if(seg == vaddrs.length)
+                return amount;
+
+            int paddr = -1, length = 0, numPinned = 0;
+            int s = seg, d = done;
+            while(s < vaddrs.length){
+                if(d == counts[s]){
+                    s++;
+                    d = 0;
+                    continue;
+                }
+                int vaddr = vaddrs[s] + d;
+
+                // a page already pinned in this run must not be pinned or
+                // unpinned again, or it could be released mid-transfer
+                int p = 0;
+                while(p < numPinned && pinned[p] != vaddr/pageSize)
+                    p++;
+                int next;
+                if(p < numPinned)
+                    next = pinnedAddrs[p] + vaddr%pageSize;
+                else if(numPinned == maxPinnedPages)
+                    break;
+                else
+                    next = pinVirtualMemory(vaddr, toMemory);
+
+                if(numPinned > 0 && next != paddr+length){
+                    if(p == numPinned && next != -1)
+                        unpinVirtualMemory(vaddr);
+                    break;
+                }
+                if(next == -1)
+                    return -1;
+                if(numPinned == 0)
+                    paddr = next;
+                if(p == numPinned){
+                    pinned[numPinned] = vaddr/pageSize;
+                    pinnedAddrs[numPinned++] = next - vaddr%pageSize;
+                }
+
+                int chunk = Math.min(pageSize - vaddr%pageSize, counts[s]-d);
+                length += chunk;
+                d += chunk;
+            }
+
+            int transferred;
+            if(toMemory)
+                transferred = file.read(memory, paddr, length);
+            else
+                transferred = file.write(memory, paddr, length);
+            for(int i=0; i<numPinned; ++i)
+                unpinVirtualMemory(pinned[i]*pageSize);
+
+            if(transferred == -1 || (!toMemory && transferred < length))
+                return -1;
+            if(transferred == 0)
+                return amount;
+            amount += transferred;
+
+            while(transferred > 0){
+                int step = Math.min(transferred, counts[seg]-done);
+                done += step;
+                transferred -= step;
+                if(done == counts[seg]){
+                    seg++;
+                    done = 0;
+                }
+            }
+        }
+	}
+
 	/**
 	 * Load the executable with the specified name into this process, and
 	 * prepare to pass it the specified arguments. Opens the executable, reads
@@ -283,6 +413,8 @@ public class UserProcess {
 			return false;
 		}
 
+		executableID = name + "#" + executable.length();
+
 		try {
 			coff = new Coff(executable);
 		}
@@ -378,12 +510,23 @@ public class UserProcess {
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
 
-                Integer ppn = UserKernel.getPPN();
+                // share read-only pages with other processes running the same executable
+                Integer ppn = null;
+                if(section.isReadOnly())
+                    ppn = UserKernel.getTextPage(textPageKey(s, i));
+                if(ppn!=null){
+                    pageTable[vpn] = new TranslationEntry(vpn, ppn, true, true, false, false);
+                    continue;
+                }
+
+                ppn = UserKernel.getPPN();
                 if(ppn==null){
                     return false;
                 }
                 pageTable[vpn] = new TranslationEntry(vpn, ppn, true, section.isReadOnly(), false, false);
 				section.loadPage(i, ppn);
+                if(section.isReadOnly())
+                    UserKernel.addTextPage(textPageKey(s, i), ppn);
 			}
 		}
 
@@ -407,6 +550,17 @@ public class UserProcess {
 		return true;
 	}
 
+	/**
+	 * Return the key under which a page of the executable is kept in the
+	 * kernel's text page cache. Files are identified by name and length.
+	 * 
+	 * @param section the number of the COFF section.
+	 * @param page the number of the page within the section.
+	 */
+	protected String textPageKey(int section, int page) {
+		return executableID + ":" + section + ":" + page;
+	}
+
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
@@ -432,6 +586,14 @@ public class UserProcess {
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+        // a forked process carries on from where its parent was
+        if(forkRegisters != null){
+            for (int i = 0; i < Processor.numUserRegisters; i++)
+                processor.writeRegister(i, forkRegisters[i]);
+            forkRegisters = null;
+            return;
+        }
+
 		// by default, everything's 0
 		for (int i = 0; i < Processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
@@ -454,9 +616,9 @@ public class UserProcess {
             return 0;
         }
 
-		Machine.halt();
+		Kernel.kernel.terminate();
 
-		Lib.assertNotReached("Machine.halt() did not halt machine!");
+		Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 		return 0;
 	}
 
@@ -488,6 +650,102 @@ public class UserProcess {
         }
 	}
 
+	/**
+	 * Handle the fork() system call: create a child process running a copy of
+	 * this one, which returns 0 from the call. The copy's pages are shared
+	 * with this process and marked read-only in both; a page is only copied
+	 * when one of them writes to it. Open files are shared too, including
+	 * their positions.
+	 */
+	private int handleFork() {
+        UserProcess child = newUserProcess();
+
+        child.numPages = numPages;
+        child.pageTable = new TranslationEntry[numPages];
+        if(copyOnWrite == null)
+            copyOnWrite = new boolean[numPages];
+        child.copyOnWrite = new boolean[numPages];
+        for(int vpn=0; vpn<numPages; ++vpn){
+            TranslationEntry e = pageTable[vpn];
+            if(e == null || !e.valid)
+                continue;
+            if(!e.readOnly){
+                e.readOnly = true;
+                copyOnWrite[vpn] = true;
+            }
+            child.copyOnWrite[vpn] = copyOnWrite[vpn];
+            child.pageTable[vpn] = new TranslationEntry(vpn, e.ppn, true, true, false, false);
+            UserKernel.sharePPN(e.ppn);
+        }
+
+        for(int fd=0; fd<maxOpenFiles; ++fd){
+            if(fileTable[fd] != null){
+                child.fileTable[fd] = fileTable[fd];
+                Integer refs = fileRefs.get(fileTable[fd]);
+                fileRefs.put(fileTable[fd], refs == null ? 2 : refs+1);
+            }
+        }
+        child.emptyFD = new LinkedList<Integer>(emptyFD);
+
+        // the child returns 0 from the syscall, past the syscall instruction
+        Processor processor = Machine.processor();
+        child.forkRegisters = new int[Processor.numUserRegisters];
+        for (int i = 0; i < Processor.numUserRegisters; i++)
+            child.forkRegisters[i] = processor.readRegister(i);
+        child.forkRegisters[Processor.regV0] = 0;
+        child.forkRegisters[Processor.regPC] = child.forkRegisters[Processor.regNextPC];
+        child.forkRegisters[Processor.regNextPC] += 4;
+
+		child.thread = new UThread(child);
+		child.thread.setName(thread.getName()).fork();
+        UserKernel.processStart();
+        child.ID = UserKernel.newID();
+
+        childProcesses.put(child.ID, child);
+        return child.ID;
+	}
+
+	/**
+	 * Give this process its own copy of a page it shares copy-on-write, or
+	 * just make the page writable again if no other process refers to it any
+	 * more.
+	 * 
+	 * @param vpn the page to write to.
+	 * @return <tt>false</tt> if the page is genuinely read-only, or there is
+	 * no physical memory for the copy.
+	 */
+	protected boolean copyOnWrite(int vpn) {
+        if(copyOnWrite == null || !copyOnWrite[vpn])
+            return false;
+
+        TranslationEntry e = pageTable[vpn];
+        if(UserKernel.isSharedPPN(e.ppn)){
+            Integer ppn = UserKernel.getPPN();
+            if(ppn == null){
+                Lib.debug(dbgProcess, "No memory to copy VPN:"+vpn);
+                return false;
+            }
+            byte[] memory = Machine.processor().getMemory();
+            System.arraycopy(memory, e.ppn*pageSize, memory, ppn*pageSize, pageSize);
+            UserKernel.releasePPN(e.ppn);
+            e.ppn = ppn;
+        }
+        e.readOnly = false;
+        copyOnWrite[vpn] = false;
+        return true;
+	}
+
+	/**
+	 * Close a file of this process, unless a forked process still shares it.
+	 */
+	private static void closeFile(OpenFile file) {
+        Integer refs = fileRefs.remove(file);
+        if(refs != null && refs > 2)
+            fileRefs.put(file, refs-1);
+        else if(refs == null)
+            file.close();
+	}
+
 	private int handleJoin(int processID, int statusPointer) {
         UserProcess child = childProcesses.remove(processID);
         if(child == null)
@@ -578,22 +836,7 @@ public class UserProcess {
         OpenFile file = fileTable[fd];
         if(file == null)
             return -1;
-        int amount = 0;
-        while(count > amount){
-            int length = Math.min(buffer.length, count-amount);
-            int new_read = file.read(buffer, 0, length);
-            switch(new_read){
-            case -1:
-                return -1;
-            case 0:
-                return amount;
-            default:
-                if(new_read > writeVirtualMemory(bufferPointer+amount, buffer, 0, length))
-                    return -1;
-                amount += new_read;
-            }
-        }
-        return amount;
+        return transferFile(file, bufferPointer, count, true);
 	}
 
 	private int handleWrite(int fd, int bufferPointer, int count) {
@@ -602,17 +845,59 @@ public class UserProcess {
         OpenFile file = fileTable[fd];
         if(file == null)
             return -1;
-        int amount = 0;
-        while(count > amount){
-            int length = Math.min(buffer.length, count-amount);
-            int new_read = readVirtualMemory(bufferPointer+amount, buffer, 0, length);
-            if(new_read<length || new_read>file.write(buffer, 0, length))
+        return transferFile(file, bufferPointer, count, false);
+	}
+
+	/**
+	 * Return the file open as file descriptor <i>fd</i>.
+	 * 
+	 * @param fd the file descriptor.
+	 * @return the open file, or <tt>null</tt> if <i>fd</i> is not in use.
+	 */
+	protected OpenFile getOpenFile(int fd) {
+        if(fd<0 || fd>=maxOpenFiles)
+            return null;
+        return fileTable[fd];
+	}
+
+	private int handleReadv(int fd, int iovPointer, int iovcnt) {
+        return transferVector(fd, iovPointer, iovcnt, true);
+	}
+
+	private int handleWritev(int fd, int iovPointer, int iovcnt) {
+        return transferVector(fd, iovPointer, iovcnt, false);
+	}
+
+	/**
+	 * Read the array of <i>iovcnt</i> iovecs at <i>iovPointer</i>, each a
+	 * buffer address followed by its length, and transfer data between the
+	 * file and those buffers in one go.
+	 */
+	private int transferVector(int fd, int iovPointer, int iovcnt, boolean toMemory) {
+        if(iovcnt<0 || iovcnt>maxIovecs || fd<0 || fd>=maxOpenFiles)
+            return -1;
+        OpenFile file = fileTable[fd];
+        if(file == null)
+            return -1;
+        if(iovcnt == 0)
+            return 0;
+
+        byte[] iov = new byte[8*iovcnt];
+        if(readVirtualMemory(iovPointer, iov) < iov.length)
+            return -1;
+        int[] vaddrs = new int[iovcnt];
+        int[] counts = new int[iovcnt];
+        long total = 0;
+        for(int i=0; i<iovcnt; ++i){
+            vaddrs[i] = Lib.bytesToInt(iov, 8*i);
+            counts[i] = Lib.bytesToInt(iov, 8*i+4);
+            if(counts[i] < 0)
                 return -1;
-            amount += new_read;
+            total += counts[i];
         }
-        if(amount == count)
-            return amount;
-        return -1;
+        if(total > Integer.MAX_VALUE)
+            return -1;
+        return transferFile(file, vaddrs, counts, toMemory);
 	}
 
 	private int handleClose(int fd) {
@@ -620,7 +905,7 @@ public class UserProcess {
             Lib.debug(dbgProcess, "invalid fd:" + fd);
             return -1;
         }
-        fileTable[fd].close();
+        closeFile(fileTable[fd]);
         fileTable[fd] = null;
         emptyFD.add(fd);
         Lib.debug(dbgProcess, "close file:"+fd);
@@ -637,7 +922,8 @@ public class UserProcess {
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallReadv = 13, syscallWritev = 14,
+			syscallFork = 16;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -691,6 +977,20 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>16</td>
+	 * <td><tt>int  fork();</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -722,6 +1022,12 @@ public class UserProcess {
             return handleClose(a0);
         case syscallUnlink:
             return handleUnlink(a0);
+        case syscallReadv:
+            return handleReadv(a0, a1, a2);
+        case syscallWritev:
+            return handleWritev(a0, a1, a2);
+        case syscallFork:
+            return handleFork();
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
             return -1;
@@ -739,6 +1045,13 @@ public class UserProcess {
 		Processor processor = Machine.processor();
 
 		switch (cause) {
+		case Processor.exceptionReadOnly:
+			int vpn = processor.readRegister(Processor.regBadVAddr) / pageSize;
+			if(!copyOnWrite(vpn)){
+				Lib.debug(dbgProcess, "Unexpected exception: " + Processor.exceptionNames[cause]);
+				exit();
+			}
+			break;
 		case Processor.exceptionSyscall:
 			int result = handleSyscall(processor.readRegister(Processor.regV0),
 					processor.readRegister(Processor.regA0),
@@ -771,6 +1084,9 @@ public class UserProcess {
     
 	private int initialPC, initialSP;
 
+	/** The name and length of the executable, to tell it apart from others. */
+	private String executableID;
+
 	private int argc, argv;
 
 	private static final int pageSize = Processor.pageSize;
@@ -781,11 +1097,28 @@ public class UserProcess {
 
 	private static final int maxOpenFiles = 16;
 
+	/** The most distinct pages a file transfer pins at once. */
+	private static final int maxPinnedPages = 4;
+
+	/** The most buffers a <tt>readv</tt> or <tt>writev</tt> can take. */
+	private static final int maxIovecs = 16;
+
     private OpenFile[] fileTable = new OpenFile[maxOpenFiles];
 
+    /**
+     * The number of processes sharing each file that forked processes share,
+     * when more than one.
+     */
+    private static HashMap<OpenFile, Integer> fileRefs = new HashMap<OpenFile, Integer>();
+
+    /** Which pages are shared copy-on-write, or null if none ever were. */
+    private boolean[] copyOnWrite = null;
+
+    /** The registers a forked process starts with. */
+    private int[] forkRegisters = null;
+
     private LinkedList<Integer> emptyFD;
 
-    private byte[] buffer = new byte[pageSize]; 
 
     private Integer exitCode;
 
@@ -31,6 +31,7 @@ public class VMKernel extends UserKernel {
         pinedPage = new HashSet<TranslationEntry>();
         swapFile = fileSystem.open("global_swap", true);
         swapTable = new HashMap<TranslationEntry, Integer>();
+        mappedPages = new HashMap<TranslationEntry, MappedPage>();
         hasUnPinedPage = new Condition2(lock);
 	}
 
@@ -66,6 +67,51 @@ public class VMKernel extends UserKernel {
             globalPageTable.add(e);
     }
 
+    /**
+     * Make a page table entry a page of a memory-mapped file. The page is read
+     * in from the file when it is faulted in, and when it is evicted or
+     * unmapped it is written back to the file if dirty, instead of to swap.
+     *
+     * @param e the entry, which must not be valid yet.
+     * @param file the mapped file.
+     * @param offset the offset in the file of the first byte of the page.
+     * @param length the number of bytes of the page that are mapped.
+     */
+    public static void mapPage(TranslationEntry e, OpenFile file, int offset, int length){
+        lock.acquire();
+        Lib.assertTrue(!e.valid);
+        mappedPages.put(e, new MappedPage(file, offset, length));
+        globalPageTable.add(e);
+        lock.release();
+    }
+
+    /**
+     * Remove a page of a memory-mapped file, writing it back to the file if it
+     * is in memory and dirty, and freeing its physical page.
+     *
+     * @param e the entry passed to <tt>mapPage()</tt>.
+     */
+    public static void unmapPage(TranslationEntry e){
+        lock.acquire();
+        MappedPage mapped = mappedPages.remove(e);
+        Lib.assertTrue(mapped != null);
+        boolean resident = e.valid;
+        e.valid = false;
+        if(resident && e.dirty)
+            mapped.writeBack(e.ppn);
+        // keep the clock on the same entry as the later ones shift down
+        int index = globalPageTable.indexOf(e);
+        globalPageTable.remove(index);
+        if(index < clockPointer)
+            clockPointer -= 1;
+        if(clockPointer > globalPageTable.size())
+            clockPointer = 0;
+        lock.release();
+
+        if(resident)
+            releasePPN(e.ppn);
+    }
+
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
@@ -89,6 +135,8 @@ public class VMKernel extends UserKernel {
             if(e!=null && e.valid && !pinedPage.contains(e)){
                 if(e.used)
                     e.used = false;
+                else if(dropSharedPPN(e.ppn))
+                    e.valid = false; // a shared text page, still used by others
                 else
                     target = e;
             }
@@ -97,6 +145,13 @@ public class VMKernel extends UserKernel {
 
         //evict page
         target.valid = false;
+        MappedPage mapped = mappedPages.get(target);
+        if(mapped != null){
+            if(target.dirty)
+                mapped.writeBack(target.ppn);
+            lock.release();
+            return target.ppn;
+        }
         if(!target.dirty && (target.readOnly || swapTable.containsKey(target.ppn))){
             lock.release();
             return target.ppn;
@@ -120,7 +175,10 @@ public class VMKernel extends UserKernel {
         lock.acquire();
         Integer start = swapTable.get(e);
         byte[] memory = Machine.processor().getMemory();
-        if(start == null)
+        MappedPage mapped = mappedPages.get(e);
+        if(mapped != null)
+            mapped.readIn(e.ppn);
+        else if(start == null)
             Arrays.fill(memory, e.ppn*pageSize, (e.ppn+1)*pageSize, (byte)0);
         else{
             int r = swapFile.read(start*pageSize, memory, e.ppn*pageSize, pageSize);
@@ -129,7 +187,7 @@ public class VMKernel extends UserKernel {
         e.used = false;
         e.dirty = false;
         lock.release();
-        return start!=null;
+        return start!=null || mapped!=null;
     }
     
     public static void pinPage(TranslationEntry e){
@@ -147,6 +205,44 @@ public class VMKernel extends UserKernel {
         lock.release();
     }
 
+    /**
+     * Where a page of a memory-mapped file comes from in the file.
+     */
+    private static class MappedPage {
+        MappedPage(OpenFile file, int offset, int length){
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /** Fill physical page <i>ppn</i> from the file, zeroing past its end. */
+        void readIn(int ppn){
+            byte[] memory = Machine.processor().getMemory();
+            int r = file.read(offset, memory, ppn*pageSize, length);
+            Arrays.fill(memory, ppn*pageSize + Math.max(r, 0), (ppn+1)*pageSize, (byte)0);
+        }
+
+        /**
+         * Write the mapped part of physical page <i>ppn</i> that lies within
+         * the file back to it. Mapped bytes past the end of the file are not
+         * saved, so that a map never grows its file.
+         */
+        void writeBack(int ppn){
+            byte[] memory = Machine.processor().getMemory();
+            int amount = Math.min(length, file.length() - offset);
+            if(amount <= 0)
+                return;
+            int r = file.write(offset, memory, ppn*pageSize, amount);
+            Lib.assertTrue(r==amount);
+        }
+
+        OpenFile file;
+
+        int offset;
+
+        int length;
+    }
+
     private static ArrayList<TranslationEntry> globalPageTable;
 
     private static HashSet<TranslationEntry> pinedPage;
@@ -157,6 +253,8 @@ public class VMKernel extends UserKernel {
 
     private static HashMap<TranslationEntry, Integer> swapTable;
 
+    private static HashMap<TranslationEntry, MappedPage> mappedPages;
+
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 
@@ -6,6 +6,7 @@ import nachos.userprog.*;
 import nachos.vm.*;
 
 import java.util.Arrays;
+import java.util.HashMap;
 
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
@@ -70,9 +71,92 @@ public class VMProcess extends UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+        for(Mapping m : mappings.values())
+            unmap(m);
+        mappings.clear();
 		super.unloadSections();
 	}
 
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch (syscall) {
+        case syscallMmap:
+            return handleMmap(a0, a1);
+        case syscallMunmap:
+            return handleMunmap(a0);
+        case syscallFork:
+            // pages here can be swapped out, and swap is kept per page table
+            // entry, so they cannot be shared copy-on-write
+            return -1;
+		default:
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
+		}
+	}
+
+    /**
+     * Map the first <i>length</i> bytes of the file open as <i>fd</i> into
+     * pages above the program's address space. The pages are faulted in from
+     * the file as they are touched, and dirty pages are written back to the
+     * file when evicted or unmapped. The mapping keeps its own handle on the
+     * file, so it outlives <i>fd</i> being closed.
+     *
+     * @return the address of the mapping, or -1 if an error occurred.
+     */
+    private int handleMmap(int fd, int length){
+        OpenFile file = getOpenFile(fd);
+        if(file == null || length <= 0 || file.length() < 0)
+            return -1;
+        OpenFile mapFile = UserKernel.fileSystem.open(file.getName(), false);
+        if(mapFile == null)
+            return -1;
+
+        int pages = (length + pageSize - 1) / pageSize;
+        int start = numPages;
+        for(int vpn=numPages; vpn<pageTable.length && vpn-start<pages; ++vpn)
+            if(pageTable[vpn] != null)
+                start = vpn+1;
+        if((long)(start+pages)*pageSize > Integer.MAX_VALUE){
+            mapFile.close();
+            return -1;
+        }
+        if(start+pages > pageTable.length){
+            pageTable = Arrays.copyOf(pageTable, start+pages);
+            Machine.processor().setPageTable(pageTable);
+        }
+
+        for(int i=0; i<pages; ++i){
+            int vpn = start + i;
+            pageTable[vpn] = new TranslationEntry(vpn, 0, false, false, false, false);
+            VMKernel.mapPage(pageTable[vpn], mapFile, i*pageSize,
+                    Math.min(pageSize, length - i*pageSize));
+        }
+        mappings.put(start, new Mapping(start, pages, mapFile));
+        return start*pageSize;
+    }
+
+    /**
+     * Remove the mapping at address <i>addr</i>, as returned by
+     * <tt>mmap()</tt>, writing its dirty pages back to the file.
+     *
+     * @return 0 on success, or -1 if there is no mapping at <i>addr</i>.
+     */
+    private int handleMunmap(int addr){
+        if(addr <= 0 || addr%pageSize != 0)
+            return -1;
+        Mapping m = mappings.remove(addr/pageSize);
+        if(m == null)
+            return -1;
+        unmap(m);
+        return 0;
+    }
+
+    private void unmap(Mapping m){
+        for(int vpn=m.start; vpn<m.start+m.pages; ++vpn){
+            VMKernel.unmapPage(pageTable[vpn]);
+            pageTable[vpn] = null;
+        }
+        m.file.close();
+    }
+
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
 	 * . The <i>cause</i> argument identifies which exception occurred; see the
@@ -85,7 +169,8 @@ public class VMProcess extends UserProcess {
             case Processor.exceptionPageFault:
                 int vaddr = Machine.processor().readRegister(Processor.regBadVAddr);
                 int vpn = vaddr/pageSize;
-                loadPage(vpn);
+                if(!loadPage(vpn))
+                    super.handleException(cause);
                 break;
             default:
                 super.handleException(cause);
@@ -95,11 +180,24 @@ public class VMProcess extends UserProcess {
 
     private boolean loadPage(int vpn){
         // Lib.debug('a', ""+vpn+" load:"+KThread.currentThread().getName());
-        if(vpn<0 || vpn >=numPages){
+        if(vpn<0 || vpn >=pageTable.length || pageTable[vpn]==null){
             Lib.debug(dbgProcess,"VPN out of space:"+vpn);
             return false;
         }
         byte[] memory = Machine.processor().getMemory();
+
+        // share read-only pages with other processes running the same executable
+        if(pageTable[vpn].readOnly){
+            int s = sectionOf(vpn);
+            Integer ppn = UserKernel.getTextPage(textPageKey(s, vpn - coff.getSection(s).getFirstVPN()));
+            if(ppn != null){
+                pageTable[vpn].ppn = ppn;
+                pageTable[vpn].used = false;
+                pageTable[vpn].valid = true;
+                return true;
+            }
+        }
+
         Integer ppn = VMKernel.getPPN();
         if(ppn==null)
             ppn = VMKernel.getSwapPage();
@@ -112,25 +210,35 @@ public class VMProcess extends UserProcess {
         if(!restored && vpn<numPages-stackPages-1)
         {
             //coff
-            for (int s = 0; s < coff.getNumSections(); s++) {
-                CoffSection section = coff.getSection(s);
-
-                int start = section.getFirstVPN();
-                if(vpn-start < section.getLength()){
-                    section.loadPage(vpn-start, ppn);
-                    break;
-                }
-            }
+            int s = sectionOf(vpn);
+            CoffSection section = coff.getSection(s);
+            section.loadPage(vpn-section.getFirstVPN(), ppn);
+            if(section.isReadOnly())
+                UserKernel.addTextPage(textPageKey(s, vpn-section.getFirstVPN()), ppn);
         }
         VMKernel.unPinPage(pageTable[vpn]);
 
         return true;
     }
 
+    /**
+     * Return the number of the COFF section holding page <i>vpn</i> of the
+     * program.
+     */
+    private int sectionOf(int vpn){
+        for (int s = 0; s < coff.getNumSections(); s++) {
+            CoffSection section = coff.getSection(s);
+            if(vpn-section.getFirstVPN() < section.getLength())
+                return s;
+        }
+        Lib.assertNotReached();
+        return -1;
+    }
+
     protected int translate(int vaddr, boolean write){
         int vpn = vaddr / pageSize;
         int vaOffset = vaddr % pageSize;
-        if (vpn>=numPages){
+        if (vpn<0 || vpn>=pageTable.length || pageTable[vpn]==null){
             Lib.debug(dbgProcess, "VPN is out of space:"+vpn);
 			return -1;
         }
@@ -145,6 +253,38 @@ public class VMProcess extends UserProcess {
         return pageTable[vpn].ppn*pageSize + vaOffset;
     }
 
+    /**
+     * Return the physical address of a byte of virtual memory, paging it in
+     * if necessary, and pin its page so that it is not evicted until
+     * <tt>unpinVirtualMemory()</tt> is called.
+     */
+    protected int pinVirtualMemory(int vaddr, boolean write){
+        if(vaddr <= 0){
+            Lib.debug(dbgProcess, "Access NULL pointer");
+            return -1;
+        }
+        int vpn = vaddr / pageSize;
+        while(true){
+            int paddr = translate(vaddr, write);
+            if(paddr == -1)
+                return -1;
+
+            // the page may have been evicted while waiting to pin it
+            VMKernel.pinPage(pageTable[vpn]);
+            if(pageTable[vpn].valid){
+                pageTable[vpn].used = true;
+                if(write)
+                    pageTable[vpn].dirty = true;
+                return pageTable[vpn].ppn*pageSize + vaddr%pageSize;
+            }
+            VMKernel.unPinPage(pageTable[vpn]);
+        }
+    }
+
+    protected void unpinVirtualMemory(int vaddr){
+        VMKernel.unPinPage(pageTable[vaddr / pageSize]);
+    }
+
     public TranslationEntry[] getPageTable(){
         return pageTable;
     }
@@ -226,6 +366,29 @@ public class VMProcess extends UserProcess {
         return r;
     }
 
+    /**
+     * A file mapped into this process's address space by <tt>mmap()</tt>.
+     */
+    private static class Mapping {
+        Mapping(int start, int pages, OpenFile file){
+            this.start = start;
+            this.pages = pages;
+            this.file = file;
+        }
+
+        int start;
+
+        int pages;
+
+        OpenFile file;
+    }
+
+    /** The mappings of this process, by first virtual page. */
+    private HashMap<Integer, Mapping> mappings = new HashMap<Integer, Mapping>();
+
+	private static final int syscallMmap = 10, syscallMunmap = 15,
+			syscallFork = 16;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';